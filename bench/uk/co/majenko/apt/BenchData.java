@@ -0,0 +1,197 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.compress.archivers.ar.*;
+import org.apache.commons.compress.archivers.tar.*;
+import org.apache.commons.compress.compressors.bzip2.*;
+import org.apache.commons.compress.compressors.gzip.*;
+import org.apache.commons.compress.compressors.xz.*;
+
+// Synthetic data for the benchmarks: Packages stanzas, whole packages.db
+// files and .deb archives.  Everything is made from a fixed seed so runs
+// can be compared with each other.
+
+public class BenchData {
+    static final String[] WORDS = {
+        "arduino", "board", "core", "compiler", "library", "plugin", "support",
+        "serial", "usb", "bootloader", "toolchain", "avr", "arm", "pic32",
+        "firmware", "driver", "example", "sketch", "upload", "debug"
+    };
+
+    public static String stanza(String name, String version, String depends, Random r) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Package: ").append(name).append("\n");
+        sb.append("Version: ").append(version).append("\n");
+        sb.append("Architecture: linux-amd64\n");
+        sb.append("Section: ").append(WORDS[r.nextInt(4)]).append("s\n");
+        sb.append("Maintainer: Bench Mark <bench@example.com>\n");
+        if ((depends != null) && !depends.equals("")) {
+            sb.append("Depends: ").append(depends).append("\n");
+        }
+        sb.append("Filename: pool/main/").append(name.charAt(0)).append("/").append(name).append("/")
+            .append(name).append("_").append(version).append("_linux-amd64.deb\n");
+        sb.append("Size: ").append(1000 + r.nextInt(1000000)).append("\n");
+        sb.append("SHA256: ");
+        for (int i = 0; i < 64; i++) {
+            sb.append(Character.forDigit(r.nextInt(16), 16));
+        }
+        sb.append("\n");
+        sb.append("Description: ").append(sentence(r, 6)).append("\n");
+        sb.append(" ").append(sentence(r, 12)).append("\n");
+        sb.append(" .\n");
+        sb.append(" ").append(sentence(r, 12)).append("\n");
+        return sb.toString();
+    }
+
+    public static String sentence(Random r, int words) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[r.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    public static String version(Random r) {
+        return r.nextInt(10) + "." + r.nextInt(30) + "." + r.nextInt(100) + (r.nextBoolean() ? "" : "-" + (1 + r.nextInt(9)));
+    }
+
+    // A packages.db of count packages, each depending on a few of the
+    // packages before it.
+    public static void writePackagesDb(File f, int count, long seed) throws IOException {
+        Random r = new Random(seed);
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+        try {
+            for (int i = 0; i < count; i++) {
+                StringBuilder deps = new StringBuilder();
+                int n = (i == 0) ? 0 : r.nextInt(4);
+                for (int d = 0; d < n; d++) {
+                    if (d > 0) {
+                        deps.append(", ");
+                    }
+                    deps.append("pkg").append(r.nextInt(i)).append(" (>= 0.1)");
+                }
+                pw.print(stanza("pkg" + i, version(r), deps.toString(), r));
+                pw.print("\n");
+            }
+        } finally {
+            pw.close();
+        }
+    }
+
+    // A fresh APT root with the given stanzas as its packages.db and
+    // (optionally) status file.
+    public static File makeRoot(String packagesDb, String status) throws IOException {
+        File root = File.createTempFile("aptbench", "");
+        root.delete();
+        File db = new File(new File(root, "apt"), "db");
+        db.mkdirs();
+        write(new File(db, "packages.db"), packagesDb);
+        if (status != null) {
+            write(new File(db, "status"), status);
+        }
+        return root;
+    }
+
+    public static void write(File f, String data) throws IOException {
+        Writer w = new BufferedWriter(new FileWriter(f));
+        try {
+            w.write(data);
+        } finally {
+            w.close();
+        }
+    }
+
+    public static void delete(File f) {
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (File c : list) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+
+    static OutputStream compress(OutputStream out, String compression) throws IOException {
+        if (compression.equals("xz")) {
+            return new XZCompressorOutputStream(out);
+        }
+        if (compression.equals("bz2")) {
+            return new BZip2CompressorOutputStream(out);
+        }
+        if (compression.equals("gz")) {
+            return new GzipCompressorOutputStream(out);
+        }
+        return out;
+    }
+
+    static byte[] tar(Map<String, byte[]> files, String compression) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = compress(bytes, compression);
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+        for (Map.Entry<String, byte[]> e : files.entrySet()) {
+            TarArchiveEntry te = new TarArchiveEntry(e.getKey());
+            te.setSize(e.getValue().length);
+            te.setMode(0644);
+            tar.putArchiveEntry(te);
+            tar.write(e.getValue());
+            tar.closeArchiveEntry();
+        }
+        tar.close();
+        return bytes.toByteArray();
+    }
+
+    // Fill size bytes with text, which compresses about as well as the
+    // source files and headers most packages are made of.
+    public static byte[] content(Random r, int size) {
+        byte[] data = new byte[size];
+        int i = 0;
+        while (i < size) {
+            String w = WORDS[r.nextInt(WORDS.length)];
+            for (int c = 0; (c < w.length()) && (i < size); c++) {
+                data[i++] = (byte)w.charAt(c);
+            }
+            if (i < size) {
+                data[i++] = (byte)((r.nextInt(8) == 0) ? '\n' : ' ');
+            }
+        }
+        return data;
+    }
+
+    // Write the .deb for p into folder, holding files files of fileSize
+    // bytes each, with its data.tar compressed by the given method ("gz",
+    // "xz", "bz2" or "" for none).
+    public static void writeDeb(File folder, Package p, String compression, int files, int fileSize, long seed) throws IOException {
+        Random r = new Random(seed);
+        String suffix = compression.equals("") ? "" : "." + compression;
+
+        LinkedHashMap<String, byte[]> control = new LinkedHashMap<String, byte[]>();
+        control.put("./control", p.getInfo().getBytes("UTF-8"));
+
+        LinkedHashMap<String, byte[]> data = new LinkedHashMap<String, byte[]>();
+        for (int i = 0; i < files; i++) {
+            data.put("./files/" + p.getName() + "/d" + (i % 32) + "/f" + i + ".txt", content(r, fileSize));
+        }
+
+        FileOutputStream fos = new FileOutputStream(new File(folder, p.getFilename()));
+        ArArchiveOutputStream ar = new ArArchiveOutputStream(fos);
+        try {
+            addMember(ar, "debian-binary", "2.0\n".getBytes("UTF-8"));
+            addMember(ar, "control.tar" + suffix, tar(control, compression));
+            addMember(ar, "data.tar" + suffix, tar(data, compression));
+        } finally {
+            ar.close();
+        }
+    }
+
+    static void addMember(ArArchiveOutputStream ar, String name, byte[] data) throws IOException {
+        ar.putArchiveEntry(new ArArchiveEntry(name, data.length));
+        ar.write(data);
+        ar.closeArchiveEntry();
+    }
+}
@@ -0,0 +1,71 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+// Installing a package from the cache: many small files against a few
+// large ones, for each payload compression.  extractShared reuses one
+// pipeline throughout, as an install of several packages does.
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExtractBench {
+    @Param({ "gz", "xz", "bz2" })
+    String compression;
+
+    // files x bytes per file
+    @Param({ "2000x1024", "4x8388608" })
+    String layout;
+
+    File root;
+    File cache;
+    File db;
+    Package pkg;
+    ExtractionPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] l = layout.split("x");
+        int files = Integer.parseInt(l[0]);
+        int size = Integer.parseInt(l[1]);
+
+        root = BenchData.makeRoot("", "");
+        cache = new File(root, "apt/cache");
+        cache.mkdirs();
+        db = new File(root, "apt/db/packages");
+        db.mkdirs();
+        pkg = new Package(BenchData.stanza("payload", "1.0", null, new Random(1)));
+        BenchData.writeDeb(cache, pkg, compression, files, size, 1);
+        pipeline = new ExtractionPipeline();
+    }
+
+    // Start every extraction from an empty tree.
+    @Setup(Level.Invocation)
+    public void clear() {
+        BenchData.delete(new File(root, "files"));
+        BenchData.delete(new File(db, pkg.getName()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pipeline.close();
+        BenchData.delete(root);
+    }
+
+    @Benchmark
+    public boolean extract() {
+        return pkg.extractPackage(cache, db, root);
+    }
+
+    @Benchmark
+    public boolean extractShared() {
+        return pkg.extractPackage(cache, db, root, pipeline);
+    }
+}
@@ -0,0 +1,51 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+// Reading a whole packages.db, as initRepository() does when there is no
+// catalog, and opening the catalog instead.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadPackagesBench {
+    @Param({ "1000", "10000", "50000" })
+    int packages;
+
+    File root;
+    File db;
+    File cat;
+    APT apt;
+
+    @Setup
+    public void setup() throws IOException {
+        root = BenchData.makeRoot("", "");
+        db = new File(root, "apt/db/packages.db");
+        BenchData.writePackagesDb(db, packages, 1);
+        apt = new APT(root);
+        cat = new File(root, "apt/db/bench.cat");
+        Catalog.write(cat, apt.getCachedPackages().values());
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchData.delete(root);
+    }
+
+    @Benchmark
+    public int loadPackages() {
+        return apt.loadPackages(db).size();
+    }
+
+    @Benchmark
+    public Package openCatalog() throws IOException {
+        return Catalog.open(cat).get("pkg" + (packages / 2));
+    }
+}
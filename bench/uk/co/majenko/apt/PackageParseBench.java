@@ -0,0 +1,52 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+// Turning Packages stanzas into Package objects, one at a time and as a
+// stream.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PackageParseBench {
+    String[] stanzas;
+    byte[] index;
+    int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        Random r = new Random(1);
+        stanzas = new String[1024];
+        StringBuilder all = new StringBuilder();
+        for (int i = 0; i < stanzas.length; i++) {
+            stanzas[i] = BenchData.stanza("pkg" + i, BenchData.version(r), "pkg" + r.nextInt(i + 1) + " (>= 1.0) | other, base", r);
+            all.append(stanzas[i]).append("\n");
+        }
+        index = all.toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public Package parseStanza() {
+        next = (next + 1) & (stanzas.length - 1);
+        return new Package(stanzas[next]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int readIndex() throws IOException {
+        PackageReader reader = new PackageReader(new ByteArrayInputStream(index), "http://example.com");
+        int n = 0;
+        while (reader.next() != null) {
+            n++;
+        }
+        reader.close();
+        return n;
+    }
+}
@@ -0,0 +1,160 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import org.apache.commons.compress.compressors.bzip2.*;
+import org.apache.commons.compress.compressors.gzip.*;
+import org.apache.commons.compress.compressors.xz.*;
+
+// Builds a complete Debian style repository on disk:
+//
+//   dists/<dist>/<section>/binary-<arch>/Packages{,.gz,.xz,.bz2}
+//   dists/<dist>/Release
+//   pool/main/<name>/<name>_<version>_<arch>.deb
+//
+// with real sizes and checksums, so it can be updated from and installed
+// from just like the live repository.  Each package depends on up to
+// fanout packages generated before it (in any section), and the data
+// payloads take turns at each of the given compressions.  Generating the
+// same repository again with a newer version makes every package
+// upgradable.
+
+public class RepoGenerator {
+    String dist = "bench";
+    String arch = "linux-amd64";
+    String[] sections = { "cores", "boards", "libraries" };
+    int packages = 20;
+    int fanout = 2;
+    int files = 20;
+    int fileSize = 4096;
+    String[] compressions = { "gz", "xz", "bz2" };
+    boolean byHash = false;
+    long seed = 1;
+
+    public void setDist(String d) { dist = d; }
+    public void setArch(String a) { arch = a; }
+    public void setSections(String[] s) { sections = s; }
+    public void setPackagesPerSection(int n) { packages = n; }
+    public void setFanout(int n) { fanout = n; }
+    public void setFiles(int n, int size) { files = n; fileSize = size; }
+    public void setCompressions(String[] c) { compressions = c; }
+    public void setByHash(boolean b) { byHash = b; }
+    public void setSeed(long s) { seed = s; }
+
+    public String getDist() { return dist; }
+    public String getArch() { return arch; }
+    public String[] getSections() { return sections.clone(); }
+
+    public String packageName(int section, int i) {
+        return sections[section] + "-pkg" + i;
+    }
+
+    // The packages nothing else depends on, which pull in the most when
+    // installed.
+    public String[] topPackages(int count) {
+        ArrayList<String> out = new ArrayList<String>();
+        for (int i = packages - 1; (i >= 0) && (out.size() < count); i--) {
+            for (int s = sections.length - 1; (s >= 0) && (out.size() < count); s--) {
+                out.add(packageName(s, i));
+            }
+        }
+        return out.toArray(new String[0]);
+    }
+
+    public void generate(File dir, String version) throws IOException {
+        Random r = new Random(seed);
+        ArrayList<String> made = new ArrayList<String>();
+        StringBuilder[] indexes = new StringBuilder[sections.length];
+        for (int s = 0; s < sections.length; s++) {
+            indexes[s] = new StringBuilder();
+        }
+
+        int n = 0;
+        for (int i = 0; i < packages; i++) {
+            for (int s = 0; s < sections.length; s++) {
+                String name = packageName(s, i);
+                StringBuilder deps = new StringBuilder();
+                if (made.size() > 0) {
+                    int count = r.nextInt(fanout + 1);
+                    for (int d = 0; d < count; d++) {
+                        if (d > 0) {
+                            deps.append(", ");
+                        }
+                        deps.append(made.get(r.nextInt(made.size()))).append(" (>= 1.0)");
+                    }
+                }
+
+                StringBuilder st = new StringBuilder();
+                st.append("Package: ").append(name).append("\n");
+                st.append("Version: ").append(version).append("\n");
+                st.append("Architecture: ").append(arch).append("\n");
+                st.append("Section: ").append(sections[s]).append("\n");
+                st.append("Maintainer: Bench Mark <bench@example.com>\n");
+                if (deps.length() > 0) {
+                    st.append("Depends: ").append(deps).append("\n");
+                }
+                st.append("Description: ").append(BenchData.sentence(r, 6)).append("\n");
+                st.append(" ").append(BenchData.sentence(r, 12)).append("\n");
+
+                Package p = new Package(st.toString());
+                File pool = new File(dir, "pool/main/" + name);
+                pool.mkdirs();
+                BenchData.writeDeb(pool, p, compressions[n % compressions.length], files, fileSize, r.nextLong());
+                File deb = new File(pool, p.getFilename());
+
+                st.append("Filename: pool/main/").append(name).append("/").append(p.getFilename()).append("\n");
+                st.append("Size: ").append(deb.length()).append("\n");
+                st.append("SHA256: ").append(sha256(deb)).append("\n");
+                indexes[s].append(st).append("\n");
+
+                made.add(name);
+                n++;
+            }
+        }
+
+        File distDir = new File(dir, "dists/" + dist);
+        StringBuilder release = new StringBuilder();
+        release.append("Origin: bench\n");
+        release.append("Suite: ").append(dist).append("\n");
+        release.append("Architectures: ").append(arch).append("\n");
+        if (byHash) {
+            release.append("Acquire-By-Hash: yes\n");
+        }
+        release.append("SHA256:\n");
+
+        for (int s = 0; s < sections.length; s++) {
+            String rel = sections[s] + "/binary-" + arch + "/";
+            File secDir = new File(distDir, rel);
+            secDir.mkdirs();
+            byte[] data = indexes[s].toString().getBytes("UTF-8");
+            String[] suffixes = { "", ".gz", ".xz", ".bz2" };
+            String[] methods = { "", "gz", "xz", "bz2" };
+            for (int i = 0; i < suffixes.length; i++) {
+                File f = new File(secDir, "Packages" + suffixes[i]);
+                OutputStream out = BenchData.compress(new FileOutputStream(f), methods[i]);
+                out.write(data);
+                out.close();
+                String hash = sha256(f);
+                release.append(" ").append(hash).append(" ").append(f.length()).append(" ").append(rel).append(f.getName()).append("\n");
+                if (byHash) {
+                    File hashDir = new File(secDir, "by-hash/SHA256");
+                    hashDir.mkdirs();
+                    FileLinker.copy(f, new File(hashDir, hash));
+                }
+            }
+        }
+        BenchData.write(new File(distDir, "Release"), release.toString());
+    }
+
+    static String sha256(File f) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            Checksum.update(md, f);
+            return Checksum.hex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+// Dependency resolution on a long chain (each package depends on the one
+// before it) and on a wide fan (one package depending on many others that
+// share a common base), plus finding the installed dependants of the base.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolveBench {
+    @Param({ "100", "1000" })
+    int size;
+
+    File root;
+    APT apt;
+    Package deepTop;
+    Package wideTop;
+    Package base;
+
+    @Setup
+    public void setup() throws IOException {
+        Random r = new Random(1);
+        StringBuilder db = new StringBuilder();
+        StringBuilder status = new StringBuilder();
+
+        db.append(BenchData.stanza("base", "1.0", null, r)).append("\n");
+        status.append(BenchData.stanza("base", "1.0", null, r)).append("\n");
+
+        for (int i = 0; i < size; i++) {
+            String dep = (i == 0) ? "base" : "deep" + (i - 1) + " (>= 1.0)";
+            db.append(BenchData.stanza("deep" + i, "1.0", dep, r)).append("\n");
+        }
+
+        StringBuilder fan = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            String s = BenchData.stanza("wide" + i, "1.0", "base (>= 1.0), missing" + i + " | base", r);
+            db.append(s).append("\n");
+            status.append(s).append("\n");
+            if (i > 0) {
+                fan.append(", ");
+            }
+            fan.append("wide").append(i);
+        }
+        db.append(BenchData.stanza("widetop", "1.0", fan.toString(), r)).append("\n");
+
+        root = BenchData.makeRoot(db.toString(), status.toString());
+        apt = new APT(root);
+        deepTop = apt.getPackage("deep" + (size - 1));
+        wideTop = apt.getPackage("widetop");
+        base = apt.getInstalledPackage("base");
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchData.delete(root);
+    }
+
+    // Each call starts with an empty memo, as after an update.
+
+    @Benchmark
+    public int resolveDeep() {
+        apt.resolver.reset();
+        return apt.resolveDepends(deepTop).length;
+    }
+
+    @Benchmark
+    public int resolveWide() {
+        apt.resolver.reset();
+        return apt.resolveDepends(wideTop).length;
+    }
+
+    // And with the memo already filled, as when installing many packages.
+
+    @Benchmark
+    public int resolveDeepWarm() {
+        return apt.resolveDepends(deepTop).length;
+    }
+
+    @Benchmark
+    public int getDependants() {
+        return apt.getDependants(base).length;
+    }
+}
@@ -0,0 +1,186 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.net.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.sun.net.httpserver.*;
+
+// A small web server for a local folder, standing in for a real mirror.
+// It understands Range and If-Modified-Since, and can be made to behave
+// like a poor network: a fixed delay before every response, a cap on the
+// bytes per second sent by each response, and a share of requests that
+// fail, either with a 503 straight away or by dropping the connection
+// half way through the body.  Failures are drawn from a seeded generator
+// so a run can be repeated exactly.
+
+public class TestServer {
+    HttpServer server;
+    File root;
+    long latency = 0;
+    long bandwidth = 0;
+    double failureRate = 0;
+    Random random = new Random(1);
+
+    AtomicLong requests = new AtomicLong();
+    AtomicLong bytesSent = new AtomicLong();
+    AtomicLong failures = new AtomicLong();
+
+    public TestServer(File r, int port) throws IOException {
+        root = r;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port), 64);
+        server.setExecutor(Executors.newCachedThreadPool(new NamedThreadFactory("bench-http")));
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                try {
+                    serve(ex);
+                } finally {
+                    ex.close();
+                }
+            }
+        });
+    }
+
+    public void setLatency(long ms) { latency = ms; }
+    public void setBandwidth(long bytesPerSecond) { bandwidth = bytesPerSecond; }
+    public void setFailureRate(double rate) { failureRate = rate; }
+    public void setSeed(long seed) { random = new Random(seed); }
+
+    public long getRequests() { return requests.get(); }
+    public long getBytesSent() { return bytesSent.get(); }
+    public long getFailures() { return failures.get(); }
+
+    public void resetCounters() {
+        requests.set(0);
+        bytesSent.set(0);
+        failures.set(0);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        ((ExecutorService)server.getExecutor()).shutdownNow();
+    }
+
+    public String getURL() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    static SimpleDateFormat httpDate() {
+        SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return f;
+    }
+
+    synchronized boolean fail() {
+        return (failureRate > 0) && (random.nextDouble() < failureRate);
+    }
+
+    synchronized boolean failEarly() {
+        return random.nextBoolean();
+    }
+
+    void serve(HttpExchange ex) throws IOException {
+        requests.incrementAndGet();
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+
+        String path = ex.getRequestURI().getPath();
+        File f = new File(root, path);
+        if (path.contains("..") || !f.isFile()) {
+            ex.sendResponseHeaders(404, -1);
+            return;
+        }
+
+        boolean failing = fail();
+        if (failing && failEarly()) {
+            failures.incrementAndGet();
+            ex.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        long length = f.length();
+        Headers out = ex.getResponseHeaders();
+        out.set("Last-Modified", httpDate().format(new Date(f.lastModified())));
+
+        String ims = ex.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ims != null) {
+            try {
+                if ((f.lastModified() / 1000) <= (httpDate().parse(ims).getTime() / 1000)) {
+                    ex.sendResponseHeaders(304, -1);
+                    return;
+                }
+            } catch (ParseException e) {
+            }
+        }
+
+        long start = 0;
+        String range = ex.getRequestHeaders().getFirst("Range");
+        if ((range != null) && range.startsWith("bytes=") && range.endsWith("-")) {
+            start = Long.parseLong(range.substring(6, range.length() - 1));
+            if (start >= length) {
+                out.set("Content-Range", "bytes */" + length);
+                ex.sendResponseHeaders(416, -1);
+                return;
+            }
+            out.set("Content-Range", "bytes " + start + "-" + (length - 1) + "/" + length);
+            ex.sendResponseHeaders(206, length - start);
+        } else {
+            ex.sendResponseHeaders(200, length);
+        }
+
+        // A failing transfer stops half way through.
+        long stopAt = length;
+        if (failing) {
+            failures.incrementAndGet();
+            stopAt = start + ((length - start) / 2);
+        }
+
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        OutputStream body = ex.getResponseBody();
+        try {
+            in.seek(start);
+            byte[] buffer = new byte[16384];
+            long pos = start;
+            long began = System.nanoTime();
+            long sent = 0;
+            while (pos < stopAt) {
+                int n = in.read(buffer, 0, (int)Math.min(buffer.length, stopAt - pos));
+                if (n <= 0) {
+                    break;
+                }
+                body.write(buffer, 0, n);
+                pos += n;
+                sent += n;
+                bytesSent.addAndGet(n);
+                if (bandwidth > 0) {
+                    long due = (sent * 1000000000L) / bandwidth;
+                    long ahead = due - (System.nanoTime() - began);
+                    if (ahead > 0) {
+                        Thread.sleep(ahead / 1000000, (int)(ahead % 1000000));
+                    }
+                }
+            }
+            if (stopAt < length) {
+                // Drop the connection without finishing the response.
+                body.flush();
+                throw new IOException("injected failure");
+            }
+            body.close();
+        } catch (InterruptedException e) {
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+
+// Times whole update / install / upgrade runs against a generated
+// repository served by TestServer, with no network needed.  Everything is
+// set with system properties, e.g.
+//
+//   java -Dpackages=200 -Dlatency=20 -Dbandwidth=2000000 -Dfailures=0.05 \
+//        -cp ... uk.co.majenko.apt.ThroughputRunner
+//
+// packages      packages per section (20)
+// sections      comma separated section names (cores,boards,libraries)
+// fanout        most dependencies per package (2)
+// files         files in each package (20)
+// filesize      bytes per file (4096)
+// compressions  payload compressions to cycle through (gz,xz,bz2)
+// byhash        publish by-hash indexes (false)
+// installs      top level packages to install (5)
+// threads       concurrent downloads (4)
+// latency       ms before every response (0)
+// bandwidth     bytes per second per response, 0 for no cap (0)
+// failures      share of requests that fail (0)
+// seed          for the repository and the failures (1)
+// metrics       write every measurement to this file as JSON
+
+public class ThroughputRunner {
+    TestServer server;
+    MemoryMetrics metrics = new MemoryMetrics();
+    StringBuilder all = new StringBuilder();
+    long started;
+
+    static final String[] PHASES = {
+        "index.fetch", "index.parse", "resolve", "package.fetch", "package.extract", "package.uninstall"
+    };
+
+    void begin() {
+        server.resetCounters();
+        metrics.clear();
+        started = System.nanoTime();
+    }
+
+    void end(String what) {
+        long ms = (System.nanoTime() - started) / 1000000;
+        long bytes = server.getBytesSent();
+        double rate = (ms > 0) ? (bytes / 1024.0) / (ms / 1000.0) : 0;
+        System.out.println(String.format("%-24s %8d ms %6d requests %12d bytes %10.1f KB/s %4d failures",
+            what, ms, server.getRequests(), bytes, rate, server.getFailures()));
+
+        // Where the time went.  Phases that run in parallel can add up to
+        // more than the wall clock time.
+        StringBuilder sb = new StringBuilder("    ");
+        for (String phase : PHASES) {
+            if (metrics.getCount(phase) > 0) {
+                sb.append(String.format("%s %d x %.1f ms  ", phase, metrics.getCount(phase), metrics.getTotalNanos(phase) / 1000000.0));
+            }
+        }
+        if ((metrics.getCount("cache.hit") + metrics.getCount("cache.miss")) > 0) {
+            sb.append(String.format("cache %d hit / %d miss", metrics.getCount("cache.hit"), metrics.getCount("cache.miss")));
+        }
+        System.out.println(sb.toString());
+        all.append(all.length() == 0 ? "{\n" : ",\n");
+        all.append(MemoryMetrics.quote(what)).append(": ").append(metrics.toJSON().trim());
+    }
+
+    static int intProp(String name, int def) {
+        return Integer.parseInt(System.getProperty(name, Integer.toString(def)));
+    }
+
+    public void run() throws Exception {
+        File work = File.createTempFile("aptrun", "");
+        work.delete();
+        File repo = new File(work, "repo");
+        File root = new File(work, "root");
+        root.mkdirs();
+
+        long seed = Long.parseLong(System.getProperty("seed", "1"));
+
+        RepoGenerator gen = new RepoGenerator();
+        gen.setSeed(seed);
+        gen.setPackagesPerSection(intProp("packages", 20));
+        gen.setFanout(intProp("fanout", 2));
+        gen.setFiles(intProp("files", 20), intProp("filesize", 4096));
+        gen.setSections(System.getProperty("sections", "cores,boards,libraries").split(","));
+        gen.setCompressions(System.getProperty("compressions", "gz,xz,bz2").split(","));
+        gen.setByHash(Boolean.parseBoolean(System.getProperty("byhash", "false")));
+
+        long t = System.currentTimeMillis();
+        gen.generate(repo, "1.0");
+        System.out.println("Generated repository in " + (System.currentTimeMillis() - t) + " ms");
+
+        server = new TestServer(repo, 0);
+        server.setLatency(intProp("latency", 0));
+        server.setBandwidth(Long.parseLong(System.getProperty("bandwidth", "0")));
+        server.setFailureRate(Double.parseDouble(System.getProperty("failures", "0")));
+        server.setSeed(seed);
+        server.start();
+        Metrics.setSink(metrics);
+
+        try {
+            APT apt = new APT(root);
+            apt.addSource(new Source(server.getURL(), gen.getDist(), gen.getArch(), gen.getSections()));
+            apt.setDownloadThreads(intProp("threads", 4));
+            apt.setRetryPolicy(new RetryPolicy(8, 50, 2.0, 1000));
+
+            begin();
+            apt.update();
+            end("update (cold)");
+
+            begin();
+            apt.update();
+            end("update (unchanged)");
+
+            begin();
+            for (String name : gen.topPackages(intProp("installs", 5))) {
+                Package p = apt.getPackage(name);
+                if (p != null) {
+                    apt.installPackage(p);
+                }
+            }
+            end("install");
+
+            // The next release of everything.  Sleep so the new files
+            // can't share a timestamp (to the second) with the old ones.
+            Thread.sleep(1100);
+            gen.generate(repo, "1.1");
+
+            begin();
+            apt.update();
+            end("update (changed)");
+
+            begin();
+            Package[] upgrades = apt.getUpgradeList();
+            for (Package p : upgrades) {
+                apt.upgradePackage(p);
+            }
+            end("upgrade (" + upgrades.length + ")");
+
+            if (System.getProperty("metrics") != null) {
+                BenchData.write(new File(System.getProperty("metrics")), all.toString() + "\n}\n");
+            }
+        } finally {
+            Metrics.setSink(null);
+            server.stop();
+            BenchData.delete(work);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new ThroughputRunner().run();
+    }
+}
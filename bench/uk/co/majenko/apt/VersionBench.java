@@ -0,0 +1,57 @@
+package uk.co.majenko.apt;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+// Parsing version strings and comparing the results.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VersionBench {
+    static final int COUNT = 4096;
+
+    String[] strings;
+    Version[] versions;
+    int next = 0;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(1);
+        strings = new String[COUNT];
+        versions = new Version[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            switch (r.nextInt(4)) {
+                case 0: strings[i] = BenchData.version(r); break;
+                case 1: strings[i] = r.nextInt(5) + "." + r.nextInt(20) + "b" + r.nextInt(9); break;
+                case 2: strings[i] = "1.0pl" + r.nextInt(20) + "rev" + r.nextInt(300); break;
+                default: strings[i] = r.nextInt(3) + "_" + r.nextInt(10) + "_" + r.nextInt(10) + "-" + r.nextInt(99) + "a"; break;
+            }
+            versions[i] = new Version(strings[i]);
+        }
+    }
+
+    @Benchmark
+    public Version construct() {
+        next = (next + 1) & (COUNT - 1);
+        return new Version(strings[next]);
+    }
+
+    @Benchmark
+    public int compare() {
+        next = (next + 1) & (COUNT - 1);
+        return versions[next].compareTo(versions[(next * 7 + 3) & (COUNT - 1)]);
+    }
+
+    @Benchmark
+    public int sort() {
+        Version[] copy = versions.clone();
+        Arrays.sort(copy);
+        return copy.length;
+    }
+}
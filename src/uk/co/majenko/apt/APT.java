@@ -2,6 +2,7 @@ package uk.co.majenko.apt;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.commons.io.input.*;
 
@@ -13,12 +14,36 @@ public class APT {
     File cacheFolder;
     File packagesFolder;
     File packagesDB;
-
+    File catalogFile;
+    File statusFile;
+    File searchFile;
+    File sectionsFile;
+
+    // The catalog is only read into cachedPackages when something needs to
+    // walk all of it.  Until then single lookups go to the mapped catalog.
+    Catalog catalog;
     HashMap<String, Package> cachedPackages;
+    Package[] sortedPackages;
+    HashMap<String, Package[]> sectionViews;
+    SearchIndex searchIndex;
     HashMap<String, Package> installedPackages;
 
+    // Reverse dependencies of the installed packages: the name of a package
+    // maps to the names of every installed package that depends on it.
+    HashMap<String, HashSet<String>> dependants;
+
     ArrayList<Source>sources = new ArrayList<Source>();
 
+    static final int MAX_UPDATE_THREADS = 16;
+
+    DownloadExecutor downloader = new DownloadExecutor(4);
+    CacheManager cache;
+    long cacheLimit = 0;
+    Resolver resolver = new Resolver(this);
+
+    ProgressListener progressListener = null;
+    long progressInterval = 250;
+
     public APT(String rootPath) {
         root = new File(rootPath);
         initRepository();
@@ -52,9 +77,97 @@ public class APT {
 
         makeTree();
 
+        cache = new CacheManager(cacheFolder);
+        cache.setLimit(cacheLimit);
+
         packagesDB = new File(dbFolder, "packages.db");
+        catalogFile = new File(dbFolder, "packages.cat");
+        statusFile = new File(dbFolder, "status");
+        searchFile = new File(dbFolder, "search.idx");
+        sectionsFile = new File(dbFolder, "packages.sections");
+
+        catalog = null;
+        cachedPackages = null;
+        catalogChanged();
+        if (catalogFile.exists() && (catalogFile.lastModified() >= packagesDB.lastModified())) {
+            try {
+                catalog = Catalog.open(catalogFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (catalog == null) {
+            cachedPackages = loadPackages(packagesDB);
+        }
+
+        installedPackages = null;
+        if (statusFile.exists()) {
+            installedPackages = loadPackages(statusFile);
+        }
+        if (installedPackages == null) {
+            rescanInstalled();
+        } else {
+            indexDependants();
+        }
+    }
+
+    void indexDependants() {
+        dependants = new HashMap<String, HashSet<String>>();
+        for (Package p : installedPackages.values()) {
+            addDependant(p);
+        }
+    }
+
+    void addDependant(Package p) {
+        for (Relation[] group : p.getRelations(false)) {
+            for (Relation dep : group) {
+                HashSet<String> set = dependants.get(dep.getName());
+                if (set == null) {
+                    set = new HashSet<String>();
+                    dependants.put(dep.getName(), set);
+                }
+                set.add(p.getName());
+            }
+        }
+    }
+
+    void removeDependant(Package p) {
+        for (Relation[] group : p.getRelations(false)) {
+            for (Relation dep : group) {
+                HashSet<String> set = dependants.get(dep.getName());
+                if (set != null) {
+                    set.remove(p.getName());
+                    if (set.size() == 0) {
+                        dependants.remove(dep.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    void recordInstalled(Package p) {
+        Package old = installedPackages.put(p.getName(), p);
+        if (old != null) {
+            removeDependant(old);
+        }
+        addDependant(p);
+        resolver.reset();
+        saveStatus();
+    }
 
-        cachedPackages = loadPackages(packagesDB);
+    void recordRemoved(String name) {
+        Package old = installedPackages.remove(name);
+        if (old != null) {
+            removeDependant(old);
+        }
+        resolver.reset();
+        saveStatus();
+    }
+
+    // Rebuild the installed package list from the control files of every
+    // package in the db folder, and write a fresh status file from it.
+    // This is only needed when the status file is missing or damaged.
+    public void rescanInstalled() {
         installedPackages = new HashMap<String, Package>();
         File[] pks = packagesFolder.listFiles();
         for (File pk : pks) {
@@ -63,11 +176,50 @@ public class APT {
                     File pf = new File(pk, "control");
                     if (pf.exists()) {
                         HashMap<String, Package> ap = loadPackages(pf);
-                        installedPackages.putAll(ap);
+                        if (ap != null) {
+                            installedPackages.putAll(ap);
+                        }
                     }
                 }
             }
         }
+        indexDependants();
+        saveStatus();
+    }
+
+    void saveStatus() {
+        try {
+            File tmp = new File(dbFolder, "status.tmp");
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")));
+            for (Package p : installedPackages.values()) {
+                pw.print(p.getInfo());
+                pw.print("\n");
+            }
+            pw.close();
+            statusFile.delete();
+            tmp.renameTo(statusFile);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Extract a package that is already in the cache and record it as
+    // installed using the control data it was shipped with.
+    boolean extractAndRecord(Package p, ExtractionPipeline pipeline) {
+        if (!p.extractPackage(cacheFolder, packagesFolder, root, pipeline)) {
+            return false;
+        }
+        File cf = new File(new File(packagesFolder, p.getName()), "control");
+        HashMap<String, Package> ctl = loadPackages(cf);
+        Package inst = (ctl == null) ? null : ctl.get(p.getName());
+        if (inst == null) {
+            inst = new Package(new HashMap<String, String>(p.properties), null);
+        }
+        recordInstalled(inst);
+        if (p.progress != null) {
+            p.progress.packageDone(p);
+        }
+        return true;
     }
 
     public HashMap<String, Package> loadPackages(File f) {
@@ -77,28 +229,12 @@ public class APT {
         }
             
         try {
-            StringBuilder chunk = new StringBuilder();
-
-
-            FileReader fis = new FileReader(f);
-            BufferedReader in = new BufferedReader(fis);
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (line.equals("")) {
-                    if (chunk.toString().length() > 0) {
-                        Package p = new Package(chunk.toString());
-                        if (p.isValid) {
-                            out.put(p.getName(), p);
-                        }
-                    }
-                    chunk = new StringBuilder();
-                } else {
-                    chunk.append(line);
-                    chunk.append("\n");
-                }
+            PackageReader in = new PackageReader(new FileInputStream(f), null);
+            Package p;
+            while ((p = in.next()) != null) {
+                out.put(p.getName(), p);
             }
             in.close();
-            fis.close();
             return out; 
         } catch (Exception e) {
             e.printStackTrace();
@@ -110,39 +246,267 @@ public class APT {
         makeTree();
 
         try {
-            PrintWriter pw = new PrintWriter(packagesDB);
-            for (Package p : cachedPackages.values()) {
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(packagesDB), "UTF-8")));
+            for (Package p : getCachedPackages().values()) {
                 pw.print(p.getInfo());
                 pw.print("\n");
             }
             pw.close();
+
+            // Anything still mapped from the old catalog must be let go of
+            // before it is replaced.
+            catalog = null;
+            File tmp = new File(dbFolder, "packages.cat.tmp");
+            Catalog.write(tmp, getCachedPackages().values());
+            catalogFile.delete();
+            if (tmp.renameTo(catalogFile)) {
+                catalog = Catalog.open(catalogFile);
+            } else {
+                tmp.delete();
+            }
+
+            searchIndex = SearchIndex.build(getCachedPackages().values());
+            searchIndex.write(searchFile);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    HashMap<String, Package> getCachedPackages() {
+        if (cachedPackages == null) {
+            if (catalog != null) {
+                cachedPackages = catalog.loadAll();
+            } else {
+                cachedPackages = new HashMap<String, Package>();
+            }
+        }
+        return cachedPackages;
+    }
+
+    // Set how many packages may be downloaded at the same time.
+    public void setDownloadThreads(int threads) {
+        downloader.setThreads(threads);
+    }
+
+    public void setRetryPolicy(RetryPolicy policy) {
+        downloader.setRetryPolicy(policy);
+    }
+
+    // Be told how each install or upgrade as a whole is going, no more
+    // often than every intervalMs.
+    public void setProgressListener(ProgressListener l, long intervalMs) {
+        progressListener = l;
+        progressInterval = intervalMs;
+    }
+
+    public void setProgressListener(ProgressListener l) {
+        setProgressListener(l, progressInterval);
+    }
+
+    TransactionProgress beginTransaction(Collection<Package> packages) {
+        if (progressListener == null) {
+            return null;
+        }
+        TransactionProgress t = new TransactionProgress(progressListener, progressInterval);
+        for (Package p : packages) {
+            t.addPackage(p);
+            p.setTransactionProgress(t);
+        }
+        t.setPhase("download");
+        return t;
+    }
+
+    void endTransaction(TransactionProgress t, Collection<Package> packages) {
+        if (t == null) {
+            return;
+        }
+        for (Package p : packages) {
+            p.setTransactionProgress(null);
+        }
+        t.finish();
+    }
+
+    public boolean fetchPackages(Collection<Package> packages) {
+        boolean ok = downloader.fetchAll(packages, cacheFolder);
+        for (Package p : packages) {
+            cache.touch(p.getFilename());
+        }
+        cache.save();
+        return ok;
+    }
+
+    // Limit the download cache to this many bytes.  Zero means no limit.
+    public void setCacheLimit(long bytes) {
+        cacheLimit = bytes;
+        cache.setLimit(bytes);
+    }
+
+    // Delete everything from the download cache.
+    public long clean() {
+        return cache.clean();
+    }
+
+    // Delete cached files for package versions that are neither installed
+    // nor in the current catalog.
+    public long autoclean() {
+        HashSet<String> keep = new HashSet<String>();
+        for (Package p : getCachedPackages().values()) {
+            keep.add(p.getFilename());
+        }
+        for (Package p : installedPackages.values()) {
+            keep.add(p.getFilename());
+        }
+        return cache.autoclean(keep);
+    }
+
     public void addSource(Source s) {
+        s.setStateFolder(new File(dbFolder, "sources"));
         sources.add(s);
+        downloader.addSource(s);
     }
 
+    // Fetch every section of every source at the same time and merge each
+    // one into the catalog as soon as it arrives.  The newest version of a
+    // package wins; on a tie the earliest source and section listed wins,
+    // just as it would if they were fetched one after another.  If no
+    // section has changed since last time the catalog is left as it is.
+    // Each source's Release is fetched in the pool too, and only that
+    // source's sections wait for it.
     public void update() {
-        cachedPackages = new HashMap<String, Package>();
+        int count = 0;
         for (Source s : sources) {
-            Package[] packages = s.getPackages();
-
-            for (Package p : packages) {
-                if (cachedPackages.get(p.getName()) != null) {
-                    Version existing = cachedPackages.get(p.getName()).getVersion();
-                    Version testing = p.getVersion();
-                    if (testing.compareTo(existing) > 0) {
-                        cachedPackages.put(p.getName(), p);
+            count += s.getSectionPaths().length;
+        }
+
+        ArrayList<Callable<Package[]>> jobs = new ArrayList<Callable<Package[]>>();
+        final ArrayList<Source> jobSources = new ArrayList<Source>();
+        final ArrayList<String> jobPaths = new ArrayList<String>();
+        StringBuilder sections = new StringBuilder();
+
+        HashMap<String, Package> updated = new HashMap<String, Package>();
+        HashMap<String, Integer> rank = new HashMap<String, Integer>();
+        boolean[] unchanged = new boolean[count];
+        int changed = 0;
+
+        if (count > 0) {
+            // The Release jobs are queued ahead of every section job, so a
+            // section can never hold the last thread its Release needs.
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(count + sources.size(), MAX_UPDATE_THREADS), new NamedThreadFactory("apt-update"));
+            for (final Source s : sources) {
+                final Future<?> release = pool.submit(new Runnable() {
+                    public void run() {
+                        s.loadRelease();
                     }
-                } else {
-                    cachedPackages.put(p.getName(), p);
+                });
+                for (final String path : s.getSectionPaths()) {
+                    jobs.add(new Callable<Package[]>() {
+                        public Package[] call() throws Exception {
+                            release.get();
+                            return s.getSectionPackages(path, true);
+                        }
+                    });
+                    jobSources.add(s);
+                    jobPaths.add(path);
+                    sections.append(s.getRoot() + "/" + path + "\n");
+                }
+            }
+
+            CompletionService<Package[]> done = new ExecutorCompletionService<Package[]>(pool);
+            HashMap<Future<Package[]>, Integer> order = new HashMap<Future<Package[]>, Integer>();
+            for (int i = 0; i < jobs.size(); i++) {
+                order.put(done.submit(jobs.get(i)), i);
+            }
+
+            try {
+                for (int i = 0; i < jobs.size(); i++) {
+                    Future<Package[]> f = done.take();
+                    int pos = order.get(f);
+                    try {
+                        Package[] list = f.get();
+                        if (list == null) {
+                            unchanged[pos] = true;
+                            continue;
+                        }
+                        merge(updated, rank, list, pos);
+                    } catch (ExecutionException e) {
+                        e.getCause().printStackTrace();
+                    }
+                    changed++;
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                pool.shutdownNow();
             }
         }
+
+        if ((changed == 0) && packagesDB.exists() && sections.toString().equals(readSections())) {
+            return;
+        }
+
+        // Something changed, so the sections that didn't have to be read
+        // from the copies kept last time to fill in the rest.
+        for (int i = 0; i < unchanged.length; i++) {
+            if (unchanged[i]) {
+                Package[] list = jobSources.get(i).readPrevious(jobPaths.get(i));
+                if (list != null) {
+                    merge(updated, rank, list, i);
+                }
+            }
+        }
+
+        cachedPackages = updated;
+        catalogChanged();
         save();
+        writeSections(sections.toString());
+    }
+
+    // Add the packages of the section at position pos to a catalog being
+    // built, keeping the newest version or the earliest section on a tie.
+    void merge(HashMap<String, Package> updated, HashMap<String, Integer> rank, Package[] list, int pos) {
+        for (Package p : list) {
+            Package existing = updated.get(p.getName());
+            if (existing != null) {
+                int c = p.compareVersion(existing);
+                if ((c < 0) || ((c == 0) && (pos > rank.get(p.getName())))) {
+                    continue;
+                }
+            }
+            updated.put(p.getName(), p);
+            rank.put(p.getName(), pos);
+        }
+    }
+
+    // The sections the catalog was last built from, one per line, so a
+    // source that has been dropped since isn't left in it.
+    String readSections() {
+        if (!sectionsFile.exists()) {
+            return null;
+        }
+        try {
+            StringBuilder sb = new StringBuilder();
+            BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(sectionsFile), "UTF-8"));
+            String line;
+            while ((line = br.readLine()) != null) {
+                sb.append(line + "\n");
+            }
+            br.close();
+            return sb.toString();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    void writeSections(String sections) {
+        try {
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(sectionsFile), "UTF-8")));
+            pw.print(sections);
+            pw.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public void listPackages(String section) {
@@ -150,9 +514,6 @@ public class APT {
         System.out.println(String.format(format, "Package", "Installed", "Available", ""));
         Package[] plist = getPackages(section);
         for (Package p : plist) {
-            if ((section != null) && (!(p.getSection().equals(section)))) {
-                continue;
-            }
             String name = p.getName();
             Version avail = p.getVersion();
             Version inst = null;
@@ -173,7 +534,7 @@ public class APT {
             Version avail = p.getVersion();
             Version inst = null;
             String msg = "";
-            if (cachedPackages.get(name) == null) {
+            if (getPackage(name) == null) {
                 System.out.println(String.format(format, name, avail.toString(), "", msg));
             }
         }
@@ -183,16 +544,136 @@ public class APT {
         listPackages(null);
     }
 
+    // The whole catalog sorted by name, and split up by section.  These
+    // are only rebuilt after the catalog has changed.
+    Package[] sortedView() {
+        Package[] view = sortedPackages;
+        if (view == null) {
+            view = getCachedPackages().values().toArray(new Package[0]);
+            Arrays.sort(view);
+            sortedPackages = view;
+        }
+        return view;
+    }
+
+    Package[] sectionView(String section) {
+        HashMap<String, Package[]> views = sectionViews;
+        if (views == null) {
+            HashMap<String, ArrayList<Package>> split = new HashMap<String, ArrayList<Package>>();
+            for (Package p : sortedView()) {
+                String sec = p.getSection();
+                if (sec == null) {
+                    continue;
+                }
+                ArrayList<Package> list = split.get(sec);
+                if (list == null) {
+                    list = new ArrayList<Package>();
+                    split.put(sec, list);
+                }
+                list.add(p);
+            }
+            views = new HashMap<String, Package[]>();
+            for (String sec : split.keySet()) {
+                views.put(sec, split.get(sec).toArray(new Package[0]));
+            }
+            sectionViews = views;
+        }
+        Package[] view = views.get(section);
+        return view == null ? new Package[0] : view;
+    }
+
+    // Forget anything worked out from the old catalog.
+    void catalogChanged() {
+        sortedPackages = null;
+        sectionViews = null;
+        searchIndex = null;
+        resolver.reset();
+    }
+
+    public String[] getSections() {
+        sectionView(null);
+        String[] list = sectionViews.keySet().toArray(new String[0]);
+        Arrays.sort(list);
+        return list;
+    }
+
     public Package[] getPackages(String section) {
+        if (section == null) {
+            return sortedView().clone();
+        }
+        return sectionView(section).clone();
+    }
+
+    // All packages whose names start with prefix, in name order.
+    public Package[] getPackagesByPrefix(String prefix) {
+        return getPackageRange(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    // All packages with names from "from" (inclusive) up to "to"
+    // (exclusive), in name order.  If the catalog hasn't been read in yet
+    // the mapped catalog is searched directly.
+    public Package[] getPackageRange(String from, String to) {
         ArrayList<Package> out = new ArrayList<Package>();
-        for (Package p : cachedPackages.values()) {
-            if ((section == null) || (p.getSection().equals(section))) {
+        if ((cachedPackages == null) && (catalog != null)) {
+            int i = catalog.indexOf(from);
+            if (i < 0) {
+                i = -(i + 1);
+            }
+            for (; i < catalog.size(); i++) {
+                if (catalog.getName(i).compareTo(to) >= 0) {
+                    break;
+                }
+                out.add(catalog.get(i));
+            }
+            return out.toArray(new Package[0]);
+        }
+
+        Package[] view = sortedView();
+        int lo = 0;
+        int hi = view.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (view[mid].getName().compareTo(from) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < view.length; i++) {
+            if (view[i].getName().compareTo(to) >= 0) {
+                break;
+            }
+            out.add(view[i]);
+        }
+        return out.toArray(new Package[0]);
+    }
+
+    // Find the packages whose name, description or section contain words
+    // starting with every word of the query.
+    public Package[] search(String query) {
+        SearchIndex index = searchIndex;
+        if (index == null) {
+            try {
+                if (searchFile.exists() && (searchFile.lastModified() >= packagesDB.lastModified())) {
+                    index = SearchIndex.load(searchFile);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (index == null) {
+                index = SearchIndex.build(getCachedPackages().values());
+            }
+            searchIndex = index;
+        }
+
+        ArrayList<Package> out = new ArrayList<Package>();
+        for (String name : index.search(query)) {
+            Package p = getPackage(name);
+            if (p != null) {
                 out.add(p);
             }
         }
-        Package[] plist = out.toArray(new Package[0]);
-        Arrays.sort(plist);
-        return plist;
+        return out.toArray(new Package[0]);
     }
 
     public Package[] getPackages() {
@@ -200,42 +681,27 @@ public class APT {
     }
 
     public Package getPackage(String name) {
-        return cachedPackages.get(name);
+        if ((cachedPackages == null) && (catalog != null)) {
+            return catalog.get(name);
+        }
+        return getCachedPackages().get(name);
     }
 
     public Package getInstalledPackage(String name) {
         return installedPackages.get(name);
     }
 
+    // Everything needed to install top, in the order it should be
+    // installed: each package comes after the packages it depends on.
     public Package[] resolveDepends(Package top) {
-        ArrayDeque<String> depList = new ArrayDeque<String>();
-        HashMap<String, Package> pkgList = new HashMap<String, Package>();
-
-        String[] deps = top.getDependencies(true);
-        if (deps != null) {
-            for (String dep : deps) {
-                depList.add(dep);
-            }
-
-            String adep;
-            while ((adep = depList.poll()) != null) {
-                Package foundPkg = cachedPackages.get(adep);
-                if (foundPkg == null) {
-                    System.err.println("Broken dependency: " + adep);
-                } else {
-                    if (pkgList.get(adep) == null) {
-                        pkgList.put(adep, foundPkg);
-                        String[] subDeps = foundPkg.getDependencies(true);
-                        if (subDeps != null) {
-                            for (String dep : subDeps) {
-                                depList.add(dep);
-                            }
-                        }
-                    }
-                }
-            }
+        Metric m = Metrics.start("resolve", top.getName());
+        try {
+            Package[] list = resolver.resolve(top);
+            m.set("packages", list.length);
+            return list;
+        } finally {
+            Metrics.finish(m);
         }
-        return pkgList.values().toArray(new Package[0]);
     }
 
     public boolean isUpgradable(Package p) {
@@ -244,12 +710,7 @@ public class APT {
         if (inst == null) {
             return false;
         }
-        Version iv = inst.getVersion();
-        Version pv = p.getVersion();
-        if (pv.compareTo(iv) > 0) {
-            return true;
-        }
-        return false;
+        return p.compareVersion(inst) > 0;
     }
 
     public boolean isInstalled(Package p) {
@@ -261,74 +722,109 @@ public class APT {
         return true;
     }
 
+    // The packages of a plan that have to be fetched and unpacked, in
+    // order.  The resolver leaves dependencies that are already met as
+    // their installed records; anything else is either missing or
+    // installed at a version that doesn't meet what asked for it, and
+    // replaces what is there.  When upgrading, met dependencies that have
+    // a newer version are brought up to date as well.
+    ArrayList<Package> changesFor(Package[] plan, boolean upgrade) {
+        ArrayList<Package> out = new ArrayList<Package>();
+        for (Package dep : plan) {
+            Package inst = installedPackages.get(dep.getName());
+            if (inst == null) {
+                out.add(dep);
+            } else if (inst != dep) {
+                if (dep.compareVersion(inst) != 0) {
+                    out.add(dep);
+                }
+            } else if (upgrade) {
+                Package avail = getPackage(dep.getName());
+                if ((avail != null) && isUpgradable(avail)) {
+                    out.add(avail);
+                }
+            }
+        }
+        return out;
+    }
+
     public void upgradePackage(Package p) {
         if (!isUpgradable(p)) {
             return;
         }
-        Package[] deps = resolveDepends(p);
-        for (Package dep : deps) {
-            if (!isInstalled(dep) || isUpgradable(dep)) {
-                if (!dep.fetchPackage(cacheFolder)) {
-                    System.err.println("Error downloading " + dep);
-                    return;
-                }
+        ArrayList<Package> deps = changesFor(resolveDepends(p), true);
+        ArrayList<Package> toFetch = new ArrayList<Package>(deps);
+        toFetch.add(p);
+        TransactionProgress t = beginTransaction(toFetch);
+        try {
+            if (!fetchPackages(toFetch)) {
+                return;
             }
-        }
-        if (!p.fetchPackage(cacheFolder)) {
-            System.err.println("Error downloading " + p);
-        }
 
-        for (Package dep : deps) {
-            if (!isInstalled(dep)) {
-                dep.extractPackage(cacheFolder, packagesFolder, root);
-            } else if(isUpgradable(dep)) {
-                uninstallPackage(dep, true);
-                dep.extractPackage(cacheFolder, packagesFolder, root);
+            if (t != null) {
+                t.setPhase("install");
+            }
+            // Every package is unpacked through the same buffers and
+            // writer threads.
+            ExtractionPipeline pipeline = new ExtractionPipeline();
+            try {
+                for (Package dep : deps) {
+                    if (isInstalled(dep)) {
+                        uninstallPackage(dep, true);
+                    }
+                    extractAndRecord(dep, pipeline);
+                }
+                uninstallPackage(p, true);
+                extractAndRecord(p, pipeline);
+            } finally {
+                pipeline.close();
             }
+        } finally {
+            endTransaction(t, toFetch);
         }
-        uninstallPackage(p, true);
-        p.extractPackage(cacheFolder, packagesFolder, root);
-        initRepository();
+        cache.enforceLimit();
     }
     public void installPackage(Package p) {
         if (isInstalled(p)) {
             return;
         }
-        Package[] deps = resolveDepends(p);
-        for (Package dep : deps) {
-            if (!isInstalled(dep)) {
-                if (!dep.fetchPackage(cacheFolder)) {
-                    System.err.println("Error downloading " + dep);
-                    return;
-                }
+        ArrayList<Package> deps = changesFor(resolveDepends(p), false);
+        ArrayList<Package> toFetch = new ArrayList<Package>(deps);
+        toFetch.add(p);
+        TransactionProgress t = beginTransaction(toFetch);
+        try {
+            if (!fetchPackages(toFetch)) {
+                return;
             }
-        }
-        if (!p.fetchPackage(cacheFolder)) {
-            System.err.println("Error downloading " + p);
-        }
 
-        for (Package dep : deps) {
-            if (!isInstalled(dep)) {
-                dep.extractPackage(cacheFolder, packagesFolder, root);
+            if (t != null) {
+                t.setPhase("install");
             }
+            ExtractionPipeline pipeline = new ExtractionPipeline();
+            try {
+                for (Package dep : deps) {
+                    if (isInstalled(dep)) {
+                        uninstallPackage(dep, true);
+                    }
+                    extractAndRecord(dep, pipeline);
+                }
+                extractAndRecord(p, pipeline);
+            } finally {
+                pipeline.close();
+            }
+        } finally {
+            endTransaction(t, toFetch);
         }
-        p.extractPackage(cacheFolder, packagesFolder, root);
-        initRepository();
+        cache.enforceLimit();
     }
 
     public Package[] getUpgradeList() {
         ArrayList<Package> toUpdate = new ArrayList<Package>();
 
-        for (Package p : cachedPackages.values()) {
-            String name = p.getName();
-            Version avail = p.getVersion();
-            Version inst = null;
-            String msg = "";
-            if (installedPackages.get(name) != null) {
-                inst = installedPackages.get(name).getVersion();
-                if (avail.compareTo(inst) > 0) {
-                    toUpdate.add(p);
-                }
+        for (Package p : getCachedPackages().values()) {
+            Package inst = installedPackages.get(p.getName());
+            if ((inst != null) && (p.compareVersion(inst) > 0)) {
+                toUpdate.add(p);
             }
         }
         return toUpdate.toArray(new Package[0]);
@@ -336,36 +832,84 @@ public class APT {
 
     public Package[] getDependants(Package p) {
         ArrayList<Package> out = new ArrayList<Package>();
-
-        for (Package ip : installedPackages.values()) {
-            String[] deps = ip.getDependencies(false);
-            if (deps == null) {
-                continue;
+        HashSet<String> names = dependants.get(p.getName());
+        HashSet<String> removing = new HashSet<String>();
+        removing.add(p.getName());
+        if (names != null) {
+            for (String name : names) {
+                Package ip = installedPackages.get(name);
+                if ((ip != null) && needs(ip, p.getName(), removing)) {
+                    out.add(ip);
+                }
             }
-            for (String dep : deps) {
-                if (dep.equals(p.getName())) {
-                    if (out.indexOf(ip) == -1) {
-                        out.add(ip);
-                    }
+        }
+        Package[] list = out.toArray(new Package[0]);
+        Arrays.sort(list);
+        return list;
+    }
+
+    // Does p still need the named package once everything in removing is
+    // gone?  Only if some group naming it has no other alternative that an
+    // installed package, not being removed, satisfies.
+    boolean needs(Package p, String name, Set<String> removing) {
+        for (Relation[] group : p.getRelations(false)) {
+            boolean names = false;
+            boolean other = false;
+            for (Relation r : group) {
+                if (r.getName().equals(name)) {
+                    names = true;
+                } else if (!removing.contains(r.getName()) && r.satisfiedBy(installedPackages.get(r.getName()))) {
+                    other = true;
                 }
             }
+            if (names && !other) {
+                return true;
+            }
         }
-        return out.toArray(new Package[0]);
+        return false;
     }
 
+    // Remove a package along with everything installed that depends on
+    // it, directly or not.  The whole set is worked out first, ordered so
+    // that nothing is removed before the packages that depend on it.
     public void recursivelyUninstallPackage(Package p) {
         if (!isInstalled(p)) {
             return;
         }
-        Package[] deps = getDependants(p);
-        for (Package dep : deps) {
-            recursivelyUninstallPackage(dep);
+
+        LinkedHashMap<String, Package> order = new LinkedHashMap<String, Package>();
+        collectDependants(p.getName(), new HashSet<String>(), order);
+
+        for (Package dep : order.values()) {
+            System.out.println("Uninstalling " + dep);
+            uninstallPackage(dep, true);
+        }
+    }
+
+    // The dependants index lists every alternative of a group, so each
+    // one is checked: a package that can make do with another installed
+    // alternative is left alone.  seen holds what is being removed.
+    void collectDependants(String name, HashSet<String> seen, LinkedHashMap<String, Package> order) {
+        if (!seen.add(name)) {
+            return;
+        }
+        HashSet<String> names = dependants.get(name);
+        if (names != null) {
+            for (String dep : names) {
+                Package ip = installedPackages.get(dep);
+                if ((ip != null) && needs(ip, name, seen)) {
+                    collectDependants(dep, seen, order);
+                }
+            }
+        }
+        Package ip = installedPackages.get(name);
+        if (ip != null) {
+            order.put(name, ip);
         }
-        System.out.println("Uninstalling " + p);
-        uninstallPackage(p, false);
     }
 
     public String uninstallPackage(Package p, boolean force) {
+        Metric m = null;
         try {
             if (!force) {
                 Package[] deps = getDependants(p);
@@ -379,6 +923,7 @@ public class APT {
                 }
             }
 
+            m = Metrics.start("package.uninstall", p.getName());
             ArrayList<File>files = new ArrayList<File>();
             File pdir = new File(packagesFolder, p.getName());
             File plist = new File(pdir, "files");
@@ -394,6 +939,7 @@ public class APT {
 
             int fcount = files.size();
             int done = 0;
+            m.set("files", fcount);
 
             ArrayList<File>dirs = new ArrayList<File>();
             for (File f : files) {
@@ -422,13 +968,23 @@ public class APT {
             File cf = new File(pdir, "control");
             cf.delete();
             pdir.delete();
-            initRepository();
+            recordRemoved(p.getName());
         } catch (Exception e) {
+            if (m != null) {
+                m.set("error", e.toString());
+            }
             e.printStackTrace();
+        } finally {
+            if (m != null) {
+                Metrics.finish(m);
+            }
         }
         return null;
     }
     public int getPackageCount() {
-        return cachedPackages.values().size();
+        if ((cachedPackages == null) && (catalog != null)) {
+            return catalog.size();
+        }
+        return getCachedPackages().size();
     }
 }
@@ -1,6 +1,7 @@
 package uk.co.majenko.apt;
 
 import java.io.*;
+import java.util.*;
 
 public class CLI {
     static public void main(String[] args) {
@@ -12,8 +13,33 @@ public class CLI {
 
         File root = new File(args[0]);
 
+        // -Dapt.metrics=<file> writes timings of everything done to <file>
+        // as JSON.
+        String metricsFile = System.getProperty("apt.metrics");
+        MemoryMetrics metrics = null;
+        if (metricsFile != null) {
+            metrics = new MemoryMetrics();
+            Metrics.setSink(metrics);
+        }
+
         APT apt = new APT(root);
 
+        // -Dapt.progress=<ms> prints how an install or upgrade is going
+        // at most every <ms>.
+        String progressInterval = System.getProperty("apt.progress");
+        if (progressInterval != null) {
+            apt.setProgressListener(new ProgressListener() {
+                public void progress(TransactionProgress t) {
+                    long eta = t.getEta();
+                    System.err.println(t.getPhase() + " " + t.getPercentage() + "% "
+                        + (t.getBytesDone() / 1024) + "/" + (t.getBytesTotal() / 1024) + "K "
+                        + t.getPackagesDone() + "/" + t.getPackagesTotal() + " packages "
+                        + (t.getRate() / 1024) + "K/s"
+                        + (eta < 0 ? "" : " ETA " + ((eta + 999) / 1000) + "s"));
+                }
+            }, Long.parseLong(progressInterval));
+        }
+
         String[] sections = {
             "cores",
             "boards",
@@ -22,9 +48,16 @@ public class CLI {
             "extra",
             "libraries"
         };
-        Source s = new Source("http://dist.majenko.co.uk", "uecide", "linux-amd64", sections);
-
-        apt.addSource(s);
+        // apt/sources.list overrides the default repository, so a local
+        // mirror (a file:// URL or plain directory) can be used instead.
+        File list = new File(new File(root, "apt"), "sources.list");
+        ArrayList<Source> sources = list.exists() ? Source.loadList(list) : new ArrayList<Source>();
+        if (sources.isEmpty()) {
+            sources.add(new Source("http://dist.majenko.co.uk", "uecide", "linux-amd64", sections));
+        }
+        for (Source s : sources) {
+            apt.addSource(s);
+        }
 
         if (args[1].equals("update")) {
             apt.update();
@@ -36,6 +69,27 @@ public class CLI {
                 apt.listPackages();
             }
         }
+        if (args[1].equals("search")) {
+            if (args.length < 3) {
+                System.err.println("Usage: apt <path> search <word[s]>");
+                System.exit(10);
+            }
+            StringBuilder query = new StringBuilder();
+            for (int i = 2; i < args.length; i++) {
+                query.append(args[i]);
+                query.append(" ");
+            }
+            String format = "%-50s %10s %s";
+            for (Package p : apt.search(query.toString())) {
+                String desc = p.getDescription();
+                if (desc == null) {
+                    desc = "";
+                } else if (desc.indexOf("\n") >= 0) {
+                    desc = desc.substring(0, desc.indexOf("\n"));
+                }
+                System.out.println(String.format(format, p.getName(), p.getVersion().toString(), desc));
+            }
+        }
         if (args[1].equals("install")) {
             if (args.length < 3) {
                 System.err.println("Usage: apt <path> install <package[s]>");
@@ -104,6 +158,15 @@ public class CLI {
                 }
             }
         }
+        if (args[1].equals("clean")) {
+            System.out.println("Freed " + apt.clean() + " bytes");
+        }
+        if (args[1].equals("autoclean")) {
+            System.out.println("Freed " + apt.autoclean() + " bytes");
+        }
+        if (args[1].equals("recover")) {
+            apt.rescanInstalled();
+        }
         if (args[1].equals("upgrade")) {
             Package[] ps = apt.getUpgradeList();
             for (Package p : ps) {
@@ -111,5 +174,13 @@ public class CLI {
                 apt.upgradePackage(p);
             }
         }
+
+        if (metrics != null) {
+            try {
+                metrics.writeJSON(new File(metricsFile));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 }
@@ -0,0 +1,177 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+
+// Looks after the download cache.  When each .deb was last used is kept
+// in a .access file in the cache folder, and when the cache grows past
+// its size limit the files that have gone unused longest are removed
+// first.  A limit of zero means the cache may grow without bound.
+
+public class CacheManager {
+    File folder;
+    File accessFile;
+    Properties access = new Properties();
+    long limit = 0;
+
+    public CacheManager(File f) {
+        folder = f;
+        accessFile = new File(folder, ".access");
+        if (accessFile.exists()) {
+            try {
+                FileInputStream in = new FileInputStream(accessFile);
+                try {
+                    access.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void setLimit(long bytes) {
+        limit = bytes;
+    }
+
+    public synchronized long getLimit() {
+        return limit;
+    }
+
+    public synchronized void touch(String filename) {
+        access.setProperty(filename, Long.toString(System.currentTimeMillis()));
+    }
+
+    public synchronized void save() {
+        try {
+            FileOutputStream out = new FileOutputStream(accessFile);
+            try {
+                access.store(out, "Last use of each cached package");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    long lastUsed(File f) {
+        String t = access.getProperty(f.getName());
+        if (t != null) {
+            try {
+                return Long.parseLong(t);
+            } catch (NumberFormatException e) {
+            }
+        }
+        return f.lastModified();
+    }
+
+    File[] debs() {
+        File[] list = folder.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".deb");
+            }
+        });
+        return list == null ? new File[0] : list;
+    }
+
+    public synchronized long size() {
+        long total = 0;
+        for (File f : debs()) {
+            total += f.length();
+        }
+        return total;
+    }
+
+    // Delete a cached file along with anything we keep about it.
+    long remove(File f) {
+        long len = f.length();
+        f.delete();
+        Checksum.forget(f);
+        new File(folder, f.getName() + ".partial").delete();
+        access.remove(f.getName());
+        return len;
+    }
+
+    // Remove the least recently used files until the cache fits its limit.
+    // Returns the number of bytes freed.
+    public synchronized long enforceLimit() {
+        if (limit <= 0) {
+            return 0;
+        }
+        File[] files = debs();
+        long total = 0;
+        final HashMap<File, Long> used = new HashMap<File, Long>();
+        for (File f : files) {
+            total += f.length();
+            used.put(f, lastUsed(f));
+        }
+        if (total <= limit) {
+            return 0;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long ua = used.get(a);
+                long ub = used.get(b);
+                return ua < ub ? -1 : ua > ub ? 1 : 0;
+            }
+        });
+
+        long freed = 0;
+        for (File f : files) {
+            if ((total - freed) <= limit) {
+                break;
+            }
+            freed += remove(f);
+        }
+        save();
+        return freed;
+    }
+
+    // Empty the cache completely.
+    public synchronized long clean() {
+        long freed = 0;
+        File[] list = folder.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                String n = f.getName();
+                if (n.endsWith(".deb") || n.endsWith(".partial") || n.endsWith(".sum")) {
+                    freed += f.length();
+                    f.delete();
+                }
+            }
+        }
+        access.clear();
+        save();
+        return freed;
+    }
+
+    // Remove every file that isn't one of the named packages, such as old
+    // versions left behind by upgrades or packages no longer offered.
+    public synchronized long autoclean(Set<String> referenced) {
+        long freed = 0;
+        File[] list = folder.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                String n = f.getName();
+                String deb = null;
+                if (n.endsWith(".deb")) {
+                    deb = n;
+                } else if (n.endsWith(".deb.partial")) {
+                    deb = n.substring(0, n.length() - 8);
+                } else if (n.endsWith(".deb.sum")) {
+                    deb = n.substring(0, n.length() - 4);
+                }
+                if ((deb != null) && !referenced.contains(deb)) {
+                    freed += f.length();
+                    f.delete();
+                    access.remove(deb);
+                }
+            }
+        }
+        save();
+        return freed;
+    }
+}
@@ -0,0 +1,174 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// A compact binary copy of the package catalog which is memory mapped
+// rather than read in.  The layout is:
+//
+//   int magic, int format, int count
+//   int offset[count]          - record offsets, sorted by package name
+//   record[count]              - name, field count, then key/value pairs
+//
+// Strings are stored as an int byte count followed by UTF-8 data.  Looking
+// up a package binary searches the offset table and only decodes the one
+// record that matches, so opening the catalog costs the same however many
+// packages it holds, and only the pages actually touched become resident.
+
+public class Catalog {
+    static final int MAGIC = 0x41505443; // "APTC"
+    static final int FORMAT = 1;
+    static final int HEADER = 12;
+
+    MappedByteBuffer map;
+    int count;
+    ConcurrentHashMap<String, Package> decoded = new ConcurrentHashMap<String, Package>();
+
+    Catalog(MappedByteBuffer m) throws IOException {
+        map = m;
+        if ((map.capacity() < HEADER) || (map.getInt(0) != MAGIC) || (map.getInt(4) != FORMAT)) {
+            throw new IOException("Not a package catalog");
+        }
+        count = map.getInt(8);
+    }
+
+    public static Catalog open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            return new Catalog(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static void write(File f, Collection<Package> packages) throws IOException {
+        Package[] sorted = packages.toArray(new Package[0]);
+        Arrays.sort(sorted);
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream rec = new DataOutputStream(records);
+        int[] offsets = new int[sorted.length];
+        int base = HEADER + (sorted.length * 4);
+
+        for (int i = 0; i < sorted.length; i++) {
+            Package p = sorted[i];
+            offsets[i] = base + rec.size();
+            writeString(rec, p.getName());
+            rec.writeInt(p.properties.size() - 1);
+            for (Map.Entry<String, String> e : p.properties.entrySet()) {
+                if (e.getKey().equals("Package")) {
+                    continue;
+                }
+                writeString(rec, e.getKey());
+                writeString(rec, e.getValue());
+            }
+        }
+        rec.flush();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(sorted.length);
+            for (int off : offsets) {
+                out.writeInt(off);
+            }
+            records.writeTo(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    String readString(ByteBuffer b) {
+        byte[] data = new byte[b.getInt()];
+        b.get(data);
+        try {
+            return new String(data, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String getName(int i) {
+        ByteBuffer b = map.duplicate();
+        b.position(map.getInt(HEADER + (i * 4)));
+        return readString(b);
+    }
+
+    public Package get(int i) {
+        ByteBuffer b = map.duplicate();
+        b.position(map.getInt(HEADER + (i * 4)));
+        String name = readString(b);
+
+        Package p = decoded.get(name);
+        if (p != null) {
+            return p;
+        }
+
+        HashMap<String, String> props = new HashMap<String, String>();
+        props.put("Package", name);
+        int fields = b.getInt();
+        for (int f = 0; f < fields; f++) {
+            String k = readString(b);
+            props.put(k, readString(b));
+        }
+        p = new Package(props, null);
+
+        Package prev = decoded.putIfAbsent(name, p);
+        return prev == null ? p : prev;
+    }
+
+    // Binary search the offset table for a name.  Returns the index of the
+    // record, or -(insertion point) - 1 if it isn't there.
+    public int indexOf(String name) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = getName(mid).compareTo(name);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    public Package get(String name) {
+        Package p = decoded.get(name);
+        if (p != null) {
+            return p;
+        }
+        int i = indexOf(name);
+        if (i < 0) {
+            return null;
+        }
+        return get(i);
+    }
+
+    public HashMap<String, Package> loadAll() {
+        HashMap<String, Package> out = new HashMap<String, Package>();
+        for (int i = 0; i < count; i++) {
+            Package p = get(i);
+            out.put(p.getName(), p);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,132 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+// The checksum a Packages stanza gives for its .deb file.  SHA256 is used
+// when it's there, otherwise MD5sum.
+//
+// Once a cached file has been checked its digest is kept in a small
+// record file next to it (<file>.sum) along with the size and date of the
+// file it was worked out from.  As long as those still match, the file
+// doesn't need reading again to know it's good.
+
+public class Checksum {
+    String algorithm;
+    String field;
+    String expected;
+
+    Checksum(String alg, String f, String exp) {
+        algorithm = alg;
+        field = f;
+        expected = exp.trim().toLowerCase();
+    }
+
+    public static Checksum forPackage(Package p) {
+        if (p.get("SHA256") != null) {
+            return new Checksum("SHA-256", "SHA256", p.get("SHA256"));
+        }
+        if (p.get("MD5sum") != null) {
+            return new Checksum("MD5", "MD5sum", p.get("MD5sum"));
+        }
+        return null;
+    }
+
+    public MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No " + algorithm + " support: " + e.getMessage());
+        }
+    }
+
+    public boolean matches(MessageDigest md) {
+        return expected.equals(hex(md.digest()));
+    }
+
+    public boolean matches(String hex) {
+        return expected.equals(hex);
+    }
+
+    public String getExpected() {
+        return expected;
+    }
+
+    public static String hex(byte[] data) {
+        StringBuilder out = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            out.append(Character.forDigit((b >> 4) & 0xF, 16));
+            out.append(Character.forDigit(b & 0xF, 16));
+        }
+        return out.toString();
+    }
+
+    // Feed the whole of a file through a digest.
+    public static void update(MessageDigest md, File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static File recordFile(File f) {
+        return new File(f.getParentFile(), f.getName() + ".sum");
+    }
+
+    // Remember the digest of a file we have just written or checked.
+    public void record(File f, String hex) {
+        Properties rec = new Properties();
+        rec.setProperty("Size", Long.toString(f.length()));
+        rec.setProperty("Modified", Long.toString(f.lastModified()));
+        rec.setProperty(field, hex);
+        try {
+            FileOutputStream out = new FileOutputStream(recordFile(f));
+            try {
+                rec.store(out, f.getName());
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Is f the file this checksum describes?  The stored record is used if
+    // it is still current; otherwise the file is read and a new record
+    // written.
+    public boolean verify(File f) throws IOException {
+        File rf = recordFile(f);
+        if (rf.exists()) {
+            Properties rec = new Properties();
+            FileInputStream in = new FileInputStream(rf);
+            try {
+                rec.load(in);
+            } finally {
+                in.close();
+            }
+            String known = rec.getProperty(field);
+            if ((known != null)
+                && Long.toString(f.length()).equals(rec.getProperty("Size"))
+                && Long.toString(f.lastModified()).equals(rec.getProperty("Modified"))) {
+                return matches(known);
+            }
+        }
+
+        MessageDigest md = newDigest();
+        update(md, f);
+        String hex = hex(md.digest());
+        record(f, hex);
+        return matches(hex);
+    }
+
+    public static void forget(File f) {
+        recordFile(f).delete();
+    }
+}
@@ -0,0 +1,101 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Fetches a whole set of packages into the cache at once, using at most
+// a fixed number of concurrent connections.  Each package still reports
+// its own progress through its attached AptPercentageListener.  The first
+// failed download cancels everything that is still queued or running.
+
+public class DownloadExecutor {
+    int threads;
+    RetryPolicy retryPolicy = new RetryPolicy();
+    HashMap<String, Source> sources = new HashMap<String, Source>();
+
+    public DownloadExecutor(int threads) {
+        setThreads(threads);
+    }
+
+    public void setThreads(int t) {
+        threads = t < 1 ? 1 : t;
+    }
+
+    public void setRetryPolicy(RetryPolicy p) {
+        retryPolicy = p;
+    }
+
+    // Packages whose Repository is this source's root are fetched through
+    // its mirrors.
+    public synchronized void addSource(Source s) {
+        sources.put(s.getRoot(), s);
+    }
+
+    synchronized Source sourceFor(Package p) {
+        return p.getRepository() == null ? null : sources.get(p.getRepository());
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public boolean fetchAll(Collection<Package> packages, final File folder) {
+        // The same file must never be written by two workers at once.
+        LinkedHashMap<String, Package> unique = new LinkedHashMap<String, Package>();
+        for (Package p : packages) {
+            unique.put(p.getFilename(), p);
+        }
+
+        if (unique.size() == 0) {
+            return true;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, unique.size()), new NamedThreadFactory("apt-download"));
+
+        CompletionService<Boolean> done = new ExecutorCompletionService<Boolean>(pool);
+        HashMap<Future<Boolean>, Package> running = new HashMap<Future<Boolean>, Package>();
+
+        for (final Package p : unique.values()) {
+            final Source source = sourceFor(p);
+            Future<Boolean> f = done.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return p.fetchPackage(folder, retryPolicy, source);
+                }
+            });
+            running.put(f, p);
+        }
+
+        boolean ok = true;
+        try {
+            for (int i = 0; i < running.size(); i++) {
+                Future<Boolean> f = done.take();
+                boolean fetched;
+                try {
+                    fetched = f.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    fetched = false;
+                }
+                if (!fetched) {
+                    System.err.println("Error downloading " + running.get(f));
+                    ok = false;
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ok = false;
+        } finally {
+            if (!ok) {
+                for (Future<Boolean> f : running.keySet()) {
+                    f.cancel(true);
+                }
+                pool.shutdownNow();
+            } else {
+                pool.shutdown();
+            }
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,258 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Writes the files of an archive on a pool of writer threads while the
+// caller carries on decompressing.  File data is handed over in large
+// buffers taken from a fixed pool, so the amount of data in flight (and
+// the memory used) is capped no matter how big the files are.
+//
+// Each file becomes one job with its own queue of buffers.  The caller
+// queues a job, then feeds it the file's data, then moves on to the next
+// entry.  Only the newest job can ever be waiting for data, so the pool
+// always drains and the caller can never wait forever for a buffer.
+//
+// One pipeline can unpack any number of archives in turn, so a whole
+// install shares its buffers and threads.  Buffers are only made as they
+// are first needed.  Call begin() before each archive, finish() after
+// it, and close() once there are no more.
+
+public class ExtractionPipeline {
+    static final int BUFFER_SIZE = 128 * 1024;
+    static final int BUFFERS = 32;
+    static final int MAX_QUEUED = 256;
+
+    static final Chunk EOF = new Chunk(null, 0);
+
+    ArrayBlockingQueue<byte[]> buffers;
+    int allocated = 0;
+    ExecutorService writers;
+    Semaphore queued = new Semaphore(MAX_QUEUED);
+    volatile IOException error = null;
+
+    // What went through: counted by the reading thread, except for the
+    // time spent writing, which is added up over all the writers.
+    long files = 0;
+    long bytes = 0;
+    long readNanos = 0;
+    AtomicLong writeNanos = new AtomicLong();
+
+    static class Chunk {
+        byte[] data;
+        int length;
+
+        Chunk(byte[] d, int l) {
+            data = d;
+            length = l;
+        }
+    }
+
+    class FileJob implements Runnable {
+        File dest;
+        int mode;
+        LinkedBlockingQueue<Chunk> chunks = new LinkedBlockingQueue<Chunk>();
+
+        FileJob(File d, int m) {
+            dest = d;
+            mode = m;
+        }
+
+        public void run() {
+            FileOutputStream fos = null;
+            long started = System.nanoTime();
+            try {
+                if (error == null) {
+                    File parent = dest.getParentFile();
+                    if ((parent != null) && !parent.exists()) {
+                        parent.mkdirs();
+                    }
+                    fos = new FileOutputStream(dest);
+                }
+                Chunk c;
+                long waiting = 0;
+                while (true) {
+                    long t = System.nanoTime();
+                    c = chunks.take();
+                    waiting += System.nanoTime() - t;
+                    if (c == EOF) {
+                        break;
+                    }
+                    if ((fos != null) && (error == null)) {
+                        fos.write(c.data, 0, c.length);
+                    }
+                    buffers.put(c.data);
+                }
+                started += waiting;
+                if (fos != null) {
+                    fos.close();
+                    fos = null;
+                    dest.setExecutable((mode & 0100) == 0100);
+                    dest.setWritable((mode & 0200) == 0200);
+                    dest.setReadable((mode & 0400) == 0400);
+                }
+            } catch (IOException e) {
+                fail(e);
+                drain();
+            } catch (InterruptedException e) {
+                fail(new InterruptedIOException("Extraction interrupted"));
+            } finally {
+                if (fos != null) {
+                    try {
+                        fos.close();
+                    } catch (IOException e) {
+                    }
+                }
+                writeNanos.addAndGet(System.nanoTime() - started);
+                queued.release();
+            }
+        }
+
+        // After a failure keep handing buffers back so the reader can't
+        // get stuck waiting for one.
+        void drain() {
+            try {
+                Chunk c;
+                while ((c = chunks.take()) != EOF) {
+                    buffers.put(c.data);
+                }
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    public ExtractionPipeline(int threads) {
+        buffers = new ArrayBlockingQueue<byte[]>(BUFFERS);
+        writers = Executors.newFixedThreadPool(threads < 1 ? 1 : threads, new NamedThreadFactory("apt-extract"));
+    }
+
+    public ExtractionPipeline() {
+        this(Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    synchronized void fail(IOException e) {
+        if (error == null) {
+            error = e;
+        }
+    }
+
+    void check() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // A free buffer, making a new one if the pool isn't full size yet.
+    // Only the caller's thread takes buffers.
+    byte[] takeBuffer() throws InterruptedException {
+        byte[] buf = buffers.poll();
+        if (buf != null) {
+            return buf;
+        }
+        if (allocated < BUFFERS) {
+            allocated++;
+            return new byte[BUFFER_SIZE];
+        }
+        return buffers.take();
+    }
+
+    // Start on a new archive, clearing the counts and any earlier error.
+    public void begin() {
+        error = null;
+        files = 0;
+        bytes = 0;
+        readNanos = 0;
+        writeNanos.set(0);
+    }
+
+    // Wait until no files are queued or being written.
+    void settle() throws InterruptedException {
+        queued.acquire(MAX_QUEUED);
+        queued.release(MAX_QUEUED);
+    }
+
+    // Queue a file to be written and feed it size bytes read from in.
+    public void write(File dest, int mode, InputStream in, long size) throws IOException {
+        check();
+        try {
+            queued.acquire();
+            FileJob job = new FileJob(dest, mode);
+            writers.execute(job);
+            files++;
+
+            long remaining = size;
+            try {
+                while (remaining > 0) {
+                    byte[] buf = takeBuffer();
+                    int want = (int)Math.min(buf.length, remaining);
+                    int got = 0;
+                    int n;
+                    long t = System.nanoTime();
+                    while ((got < want) && ((n = in.read(buf, got, want - got)) > 0)) {
+                        got += n;
+                    }
+                    readNanos += System.nanoTime() - t;
+                    bytes += got;
+                    if (got == 0) {
+                        buffers.put(buf);
+                        throw new EOFException("Unexpected end of archive in " + dest.getName());
+                    }
+                    job.chunks.put(new Chunk(buf, got));
+                    remaining -= got;
+                }
+            } finally {
+                job.chunks.put(EOF);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Extraction interrupted");
+        }
+    }
+
+    // Wait for every queued file of this archive to be written.
+    public void finish() throws IOException {
+        try {
+            settle();
+        } catch (InterruptedException e) {
+            writers.shutdownNow();
+            throw new InterruptedIOException("Extraction interrupted");
+        }
+        check();
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    // Time spent reading (and so decompressing) file data.
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    // Time the writers spent creating and writing files, summed over all
+    // of them.
+    public long getWriteNanos() {
+        return writeNanos.get();
+    }
+
+    // Give up on this archive.  Files still queued are not written, but
+    // their buffers come back so the pipeline can be used again.
+    public void abort() {
+        fail(new IOException("Extraction abandoned"));
+        try {
+            settle();
+        } catch (InterruptedException e) {
+            writers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stop the writer threads once every archive is done.
+    public void close() {
+        writers.shutdown();
+    }
+}
@@ -0,0 +1,168 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+// Makes real symbolic and hard links.  The library is still built for
+// Java 6, which has no way of making links, so the java.nio.file API of
+// newer runtimes is found by reflection.  If it isn't there, or the
+// filesystem refuses to make the link, the caller is told so it can fall
+// back to copying the file instead.
+
+public class FileLinker {
+    static Method toPath = null;
+    static Method createSymbolicLink = null;
+    static Method createLink = null;
+    static Object noAttributes = null;
+
+    static {
+        try {
+            Class<?> files = Class.forName("java.nio.file.Files");
+            Class<?> path = Class.forName("java.nio.file.Path");
+            Class<?> attribute = Class.forName("java.nio.file.attribute.FileAttribute");
+            noAttributes = Array.newInstance(attribute, 0);
+            toPath = File.class.getMethod("toPath");
+            createSymbolicLink = files.getMethod("createSymbolicLink", path, path, noAttributes.getClass());
+            createLink = files.getMethod("createLink", path, path);
+        } catch (Exception e) {
+            toPath = null;
+        }
+    }
+
+    public static boolean isAvailable() {
+        return toPath != null;
+    }
+
+    // Make link a symbolic link whose contents are target, exactly as
+    // given (so relative targets stay relative).  Targets from an archive
+    // should go through rootedTarget() first.
+    public static boolean symlink(File link, String target) {
+        if (!isAvailable()) {
+            return false;
+        }
+        try {
+            link.delete();
+            createSymbolicLink.invoke(null, toPath.invoke(link), toPath.invoke(new File(target)), noAttributes);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // The names in an archive path with "." and ".." worked out, or null
+    // if ".." would climb above the top.
+    static ArrayList<String> names(String path) {
+        ArrayList<String> out = new ArrayList<String>();
+        for (String n : path.split("/")) {
+            if (n.equals("") || n.equals(".")) {
+                continue;
+            }
+            if (n.equals("..")) {
+                if (out.isEmpty()) {
+                    return null;
+                }
+                out.remove(out.size() - 1);
+                continue;
+            }
+            out.add(n);
+        }
+        return out;
+    }
+
+    // Is f at or below root once every link already on disk is followed?
+    // The path text alone isn't enough: an earlier package may have left a
+    // link on the way.  root must be a canonical path.
+    public static boolean isWithin(String root, File f) throws IOException {
+        String c = f.getCanonicalPath();
+        String top = root.endsWith(File.separator) ? root : root + File.separator;
+        return c.equals(root) || c.startsWith(top);
+    }
+
+    // Can a link be made at f?  Whatever is there now is replaced rather
+    // than followed, so only the folder it goes in is checked.
+    public static boolean canPlace(String root, File f) throws IOException {
+        if (f.getName().equals("..")) {
+            return false;
+        }
+        return isWithin(root, f.getAbsoluteFile().getParentFile());
+    }
+
+    // The target to give a symbolic link at archive path link so that it
+    // points where target would if the install root were "/".  Absolute
+    // targets are turned into relative ones.  Returns null if the link
+    // or what it points at would be outside the root on paper; links
+    // already on disk still have to be checked with isWithin().
+    public static String rootedTarget(String link, String target) {
+        ArrayList<String> from = names(link);
+        if ((from == null) || from.isEmpty()) {
+            return null;
+        }
+        from.remove(from.size() - 1);
+
+        StringBuilder full = new StringBuilder();
+        if (!target.startsWith("/")) {
+            for (String n : from) {
+                full.append(n);
+                full.append('/');
+            }
+        }
+        full.append(target);
+        ArrayList<String> to = names(full.toString());
+        if (to == null) {
+            return null;
+        }
+
+        int common = 0;
+        while ((common < from.size()) && (common < to.size()) && from.get(common).equals(to.get(common))) {
+            common++;
+        }
+        StringBuilder rel = new StringBuilder();
+        for (int i = common; i < from.size(); i++) {
+            rel.append("../");
+        }
+        for (int i = common; i < to.size(); i++) {
+            rel.append(to.get(i));
+            rel.append('/');
+        }
+        if (rel.length() == 0) {
+            return ".";
+        }
+        rel.setLength(rel.length() - 1);
+        return rel.toString();
+    }
+
+    // Make link another name for the existing file target.
+    public static boolean hardlink(File link, File target) {
+        if (!isAvailable()) {
+            return false;
+        }
+        try {
+            link.delete();
+            createLink.invoke(null, toPath.invoke(link), toPath.invoke(target));
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // The fallback: a plain copy of the file, permissions and all.
+    public static void copy(File target, File link) throws IOException {
+        FileInputStream copyFrom = new FileInputStream(target);
+        FileOutputStream copyTo = new FileOutputStream(link);
+        byte[] copyBuffer = new byte[65536];
+        int bytesCopied = 0;
+
+        try {
+            while ((bytesCopied = copyFrom.read(copyBuffer)) > 0) {
+                copyTo.write(copyBuffer, 0, bytesCopied);
+            }
+        } finally {
+            copyFrom.close();
+            copyTo.close();
+        }
+        link.setExecutable(target.canExecute());
+        link.setReadable(target.canRead());
+        link.setWritable(target.canWrite());
+    }
+}
@@ -0,0 +1,153 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.text.*;
+import java.util.*;
+
+// Fetches from a local directory or mounted mirror.  Requests are answered
+// the way a web server would answer them, so conditional requests get a
+// 304 and Range requests a 206, and the caller can treat both transports
+// the same.  The body is offered as a FileChannel so it can be copied into
+// the cache without passing through our own buffers.
+
+public class FileTransport implements Transport {
+
+    static SimpleDateFormat httpDate() {
+        SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return f;
+    }
+
+    static String etag(File f) {
+        return "\"" + Long.toHexString(f.length()) + "-" + Long.toHexString(f.lastModified()) + "\"";
+    }
+
+    public TransportResponse open(URI uri, Map<String, String> headers) throws IOException {
+        File f;
+        try {
+            f = new File(uri);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad file URI " + uri + ": " + e.getMessage());
+        }
+        if (headers == null) {
+            headers = new HashMap<String, String>();
+        }
+
+        if (!f.isFile()) {
+            return new Response(404, null, 0, -1);
+        }
+        if (!f.canRead()) {
+            return new Response(403, null, 0, -1);
+        }
+
+        long length = f.length();
+        Response r;
+
+        String inm = headers.get("If-None-Match");
+        String ims = headers.get("If-Modified-Since");
+        String range = headers.get("Range");
+
+        if ((inm != null) && inm.equals(etag(f))) {
+            r = new Response(304, null, 0, 0);
+        } else if ((inm == null) && (ims != null) && !modifiedSince(f, ims)) {
+            r = new Response(304, null, 0, 0);
+        } else if ((range != null) && range.startsWith("bytes=") && range.endsWith("-")) {
+            long start;
+            try {
+                start = Long.parseLong(range.substring(6, range.length() - 1).trim());
+            } catch (NumberFormatException e) {
+                start = -1;
+            }
+            if ((start < 0) || (start >= length)) {
+                r = new Response(416, null, 0, 0);
+                r.headers.put("Content-Range", "bytes */" + length);
+            } else {
+                r = new Response(206, f, start, length - start);
+                r.headers.put("Content-Range", "bytes " + start + "-" + (length - 1) + "/" + length);
+            }
+        } else {
+            r = new Response(200, f, 0, length);
+        }
+
+        r.headers.put("ETag", etag(f));
+        r.headers.put("Last-Modified", httpDate().format(new Date(f.lastModified())));
+        return r;
+    }
+
+    // HTTP dates only go down to the second.
+    boolean modifiedSince(File f, String date) {
+        try {
+            long since = httpDate().parse(date).getTime();
+            return (f.lastModified() / 1000) > (since / 1000);
+        } catch (ParseException e) {
+            return true;
+        }
+    }
+
+    static class Response implements TransportResponse {
+        int status;
+        File file;
+        long offset;
+        long length;
+        HashMap<String, String> headers = new HashMap<String, String>();
+        FileInputStream stream = null;
+
+        Response(int s, File f, long off, long len) {
+            status = s;
+            file = f;
+            offset = off;
+            length = len;
+            if (len >= 0) {
+                headers.put("Content-Length", Long.toString(len));
+            }
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getContentLength() {
+            return length;
+        }
+
+        public String getHeader(String name) {
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                if (h.getKey().equalsIgnoreCase(name)) {
+                    return h.getValue();
+                }
+            }
+            return null;
+        }
+
+        FileInputStream openStream() throws IOException {
+            if (stream == null) {
+                if (file == null) {
+                    throw new FileNotFoundException("No body (status " + status + ")");
+                }
+                stream = new FileInputStream(file);
+                stream.getChannel().position(offset);
+            }
+            return stream;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return openStream();
+        }
+
+        public FileChannel getChannel() throws IOException {
+            return openStream().getChannel();
+        }
+
+        public void close() {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                }
+                stream = null;
+            }
+        }
+    }
+}
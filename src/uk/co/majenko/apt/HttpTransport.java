@@ -0,0 +1,118 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+// Fetches over HTTP and HTTPS.  HttpURLConnection keeps connections to a
+// server open and hands them out again, but only once the body of the
+// last response on them has been read to the end and the stream closed.
+// Responses here always do that when closed, unless there is too much
+// left to be worth reading, in which case the connection is dropped.
+
+public class HttpTransport implements Transport {
+    static final int CONNECT_TIMEOUT = 30000;
+    static final int READ_TIMEOUT = 60000;
+
+    // The most left over body we will read just to keep a connection.
+    static final long MAX_DRAIN = 256 * 1024;
+
+    static {
+        // The JDK keeps only 5 idle connections per server by default,
+        // fewer than we have threads downloading.
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", "16");
+        }
+        if (System.getProperty("http.keepAlive") == null) {
+            System.setProperty("http.keepAlive", "true");
+        }
+    }
+
+    public TransportResponse open(URI uri, Map<String, String> headers) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)uri.toURL().openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setUseCaches(false);
+        if (headers != null) {
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                conn.setRequestProperty(h.getKey(), h.getValue());
+            }
+        }
+        try {
+            conn.getResponseCode();
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+        return new Response(conn);
+    }
+
+    static class Response implements TransportResponse {
+        HttpURLConnection conn;
+        InputStream body = null;
+        boolean closed = false;
+        int status;
+
+        Response(HttpURLConnection c) throws IOException {
+            conn = c;
+            status = c.getResponseCode();
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getContentLength() {
+            String len = conn.getHeaderField("Content-Length");
+            if (len == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(len.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        public String getHeader(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (body == null) {
+                body = (status >= 400) ? conn.getErrorStream() : conn.getInputStream();
+                if (body == null) {
+                    body = new ByteArrayInputStream(new byte[0]);
+                }
+            }
+            return body;
+        }
+
+        public FileChannel getChannel() {
+            return null;
+        }
+
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                InputStream in = getInputStream();
+                byte[] buffer = new byte[8192];
+                long left = MAX_DRAIN;
+                int n;
+                while ((left > 0) && ((n = in.read(buffer)) > 0)) {
+                    left -= n;
+                }
+                if (left <= 0) {
+                    conn.disconnect();
+                }
+                in.close();
+            } catch (IOException e) {
+                conn.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+
+// Keeps every measurement in memory, with running totals for each name,
+// and can write them all out as JSON.
+
+public class MemoryMetrics implements MetricsSink {
+    ArrayList<Metric> metrics = new ArrayList<Metric>();
+    TreeMap<String, long[]> totals = new TreeMap<String, long[]>();
+
+    static final int COUNT = 0;
+    static final int NANOS = 1;
+    static final int BYTES = 2;
+    static final int FILES = 3;
+    static final int PACKAGES = 4;
+
+    public synchronized void record(Metric m) {
+        metrics.add(m);
+        long[] t = totals.get(m.getName());
+        if (t == null) {
+            t = new long[5];
+            totals.put(m.getName(), t);
+        }
+        t[COUNT]++;
+        t[NANOS] += m.getNanos();
+        t[BYTES] += m.get("bytes");
+        t[FILES] += m.get("files");
+        t[PACKAGES] += m.get("packages");
+    }
+
+    public synchronized Metric[] getMetrics() {
+        return metrics.toArray(new Metric[0]);
+    }
+
+    public synchronized Metric[] getMetrics(String name) {
+        ArrayList<Metric> out = new ArrayList<Metric>();
+        for (Metric m : metrics) {
+            if (m.getName().equals(name)) {
+                out.add(m);
+            }
+        }
+        return out.toArray(new Metric[0]);
+    }
+
+    public synchronized long getCount(String name) {
+        long[] t = totals.get(name);
+        return t == null ? 0 : t[COUNT];
+    }
+
+    public synchronized long getTotalNanos(String name) {
+        long[] t = totals.get(name);
+        return t == null ? 0 : t[NANOS];
+    }
+
+    public synchronized void clear() {
+        metrics.clear();
+        totals.clear();
+    }
+
+    static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // {"summary": {name: {count, ms, bytes, files, packages}, ...},
+    //  "metrics": [{name, subject, time, ms, fields...}, ...]}
+    public synchronized String toJSON() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"summary\": {");
+        boolean first = true;
+        for (Map.Entry<String, long[]> e : totals.entrySet()) {
+            long[] t = e.getValue();
+            sb.append(first ? "\n" : ",\n");
+            first = false;
+            sb.append("    ").append(quote(e.getKey())).append(": {\"count\": ").append(t[COUNT]);
+            sb.append(", \"ms\": ").append(String.format(Locale.US, "%.3f", t[NANOS] / 1000000.0));
+            sb.append(", \"bytes\": ").append(t[BYTES]);
+            sb.append(", \"files\": ").append(t[FILES]);
+            sb.append(", \"packages\": ").append(t[PACKAGES]).append("}");
+        }
+        sb.append("\n  },\n  \"metrics\": [");
+        first = true;
+        for (Metric m : metrics) {
+            sb.append(first ? "\n" : ",\n");
+            first = false;
+            sb.append("    {\"name\": ").append(quote(m.getName()));
+            sb.append(", \"subject\": ").append(quote(m.getSubject()));
+            sb.append(", \"time\": ").append(m.getTime());
+            sb.append(", \"ms\": ").append(String.format(Locale.US, "%.3f", m.getNanos() / 1000000.0));
+            for (Map.Entry<String, Object> f : m.getFields().entrySet()) {
+                sb.append(", ").append(quote(f.getKey())).append(": ");
+                if (f.getValue() instanceof Long) {
+                    sb.append(f.getValue());
+                } else {
+                    sb.append(quote(String.valueOf(f.getValue())));
+                }
+            }
+            sb.append("}");
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    public void writeJSON(File f) throws IOException {
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+        try {
+            w.write(toJSON());
+        } finally {
+            w.close();
+        }
+    }
+}
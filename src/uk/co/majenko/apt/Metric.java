@@ -0,0 +1,78 @@
+package uk.co.majenko.apt;
+
+import java.util.*;
+
+// One measurement: what was done (name, e.g. "package.fetch"), what it was
+// done to (subject, e.g. a package or section), when it started, how long
+// it took, and whatever else is worth knowing about it (bytes, files,
+// how an index was fetched ...).
+
+public class Metric {
+    String name;
+    String subject;
+    long time;
+    long startNanos;
+    long nanos = 0;
+    LinkedHashMap<String, Object> fields = new LinkedHashMap<String, Object>();
+
+    public Metric(String name, String subject) {
+        this.name = name;
+        this.subject = subject;
+        time = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    // When it started, in ms since the epoch.
+    public long getTime() {
+        return time;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    void stop() {
+        nanos = System.nanoTime() - startNanos;
+    }
+
+    public synchronized Metric set(String key, long value) {
+        fields.put(key, value);
+        return this;
+    }
+
+    public synchronized Metric set(String key, String value) {
+        fields.put(key, value);
+        return this;
+    }
+
+    public synchronized Metric add(String key, long value) {
+        return set(key, get(key) + value);
+    }
+
+    // A numeric field, or 0 if it isn't set.
+    public synchronized long get(String key) {
+        Object o = fields.get(key);
+        return (o instanceof Long) ? (Long)o : 0;
+    }
+
+    public synchronized String getString(String key) {
+        Object o = fields.get(key);
+        return (o == null) ? null : o.toString();
+    }
+
+    public synchronized Map<String, Object> getFields() {
+        return new LinkedHashMap<String, Object>(fields);
+    }
+
+    public String toString() {
+        return name + " " + subject + " " + (nanos / 1000000) + "ms " + getFields();
+    }
+}
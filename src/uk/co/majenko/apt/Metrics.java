@@ -0,0 +1,60 @@
+package uk.co.majenko.apt;
+
+// Where the library sends its measurements.  Nothing is recorded until a
+// sink is set.
+//
+// The names used are:
+//
+//   index.fetch        a section index brought up to date; bytes received,
+//                      "method" (full, diff, unchanged, not-modified, or
+//                      previous if the copy from last time was kept) and
+//                      "encoding"
+//   index.parse        reading a section index; "packages" read.
+//                      When the index is parsed as it downloads this
+//                      includes waiting for the network.
+//   resolve            working out what a package needs; "packages",
+//                      the size of the plan
+//   cache.hit          a package already in the cache
+//   cache.miss         a package that had to be downloaded
+//   package.fetch      downloading a package; bytes received, "attempts"
+//   package.extract    unpacking a package; bytes and files written, and
+//                      "decompressNanos" / "writeNanos", the time spent
+//                      decoding the payload and writing files (the two
+//                      overlap, and writing is summed over all writers)
+//   package.uninstall  removing a package; files removed
+
+public class Metrics {
+    static volatile MetricsSink sink = null;
+
+    public static void setSink(MetricsSink s) {
+        sink = s;
+    }
+
+    public static MetricsSink getSink() {
+        return sink;
+    }
+
+    public static boolean isEnabled() {
+        return sink != null;
+    }
+
+    public static Metric start(String name, String subject) {
+        return new Metric(name, subject);
+    }
+
+    public static void finish(Metric m) {
+        m.stop();
+        MetricsSink s = sink;
+        if (s != null) {
+            s.record(m);
+        }
+    }
+
+    // Something that happened rather than something that took time.
+    public static void count(String name, String subject) {
+        MetricsSink s = sink;
+        if (s != null) {
+            s.record(new Metric(name, subject));
+        }
+    }
+}
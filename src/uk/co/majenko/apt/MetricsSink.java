@@ -0,0 +1,8 @@
+package uk.co.majenko.apt;
+
+// Somewhere for finished measurements to go.  record() may be called from
+// any of the download, update and extraction threads at once.
+
+public interface MetricsSink {
+    public void record(Metric m);
+}
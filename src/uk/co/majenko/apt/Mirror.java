@@ -0,0 +1,208 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+// One of the equivalent roots a Source can fetch from, and what we have
+// learned about it: how long it takes to answer, how fast it sends, and
+// whether it has been failing.  Latency and throughput are kept as
+// moving averages so a mirror that slows down (or recovers) is noticed
+// within a few requests.
+
+public class Mirror {
+    static final double ALPHA = 0.3;
+
+    // How long a failed mirror is left alone, doubling for every failure
+    // in a row.
+    static final long MIN_HOLDOFF = 5000;
+    static final long MAX_HOLDOFF = 300000;
+
+    String root;
+    double latency = -1;        // ms to the response headers
+    double throughput = -1;     // bytes per ms
+    int failures = 0;
+    long downUntil = 0;
+    int active = 0;
+
+    public Mirror(String r) {
+        // A plain path is a local mirror.
+        if (r.indexOf("://") < 0) {
+            r = new File(r).getAbsoluteFile().toURI().toString();
+        }
+        while (r.endsWith("/")) {
+            r = r.substring(0, r.length() - 1);
+        }
+        root = r;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    public synchronized boolean isDown() {
+        return System.currentTimeMillis() < downUntil;
+    }
+
+    // What a typical 1MB fetch is expected to cost in ms.  A mirror we
+    // know nothing about yet costs nothing, so every mirror gets tried.
+    public synchronized double getCost() {
+        double cost = 0;
+        if (latency >= 0) {
+            cost += latency;
+        }
+        if (throughput > 0) {
+            cost += (1024 * 1024) / throughput;
+        }
+        return cost;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+
+    synchronized void started() {
+        active++;
+    }
+
+    synchronized void finished() {
+        active--;
+    }
+
+    synchronized void recordLatency(long ms) {
+        latency = (latency < 0) ? ms : (ALPHA * ms) + ((1 - ALPHA) * latency);
+    }
+
+    synchronized void recordTransfer(long bytes, long ms) {
+        // Small files say more about latency than bandwidth.
+        if ((bytes < 65536) || (ms <= 0)) {
+            return;
+        }
+        double rate = (double)bytes / (double)ms;
+        throughput = (throughput < 0) ? rate : (ALPHA * rate) + ((1 - ALPHA) * throughput);
+    }
+
+    synchronized void recordSuccess() {
+        failures = 0;
+        downUntil = 0;
+    }
+
+    synchronized void recordFailure() {
+        long holdoff = MIN_HOLDOFF << Math.min(failures, 6);
+        failures++;
+        downUntil = System.currentTimeMillis() + Math.min(holdoff, MAX_HOLDOFF);
+    }
+
+    public TransportResponse open(String path, Map<String, String> headers) throws IOException {
+        URI uri;
+        try {
+            uri = new URI(root + "/" + path);
+        } catch (URISyntaxException e) {
+            throw new IOException("Bad path " + path + ": " + e.getMessage());
+        }
+        long start = System.currentTimeMillis();
+        TransportResponse r = Transports.open(uri, headers);
+        recordLatency(System.currentTimeMillis() - start);
+        return new Response(r);
+    }
+
+    public String toString() {
+        return root;
+    }
+
+    // Passes everything through to the real response, timing the body as
+    // it is read so the mirror's throughput can be updated, and marking
+    // the mirror as failing if the transfer breaks off.  Only a transfer
+    // that finishes cleanly clears the mirror's run of failures.
+    class Response implements TransportResponse {
+        TransportResponse response;
+        long start = System.currentTimeMillis();
+        long bytes = 0;
+        boolean usedChannel = false;
+        boolean failed = false;
+        InputStream in = null;
+
+        Response(TransportResponse r) {
+            response = r;
+            started();
+        }
+
+        public Mirror getMirror() {
+            return Mirror.this;
+        }
+
+        // The body turned out to be bad (short, or not what was asked
+        // for) even though reading it went fine.
+        public void fail() {
+            failed = true;
+        }
+
+        public int getStatus() {
+            return response.getStatus();
+        }
+
+        public long getContentLength() {
+            return response.getContentLength();
+        }
+
+        public String getHeader(String name) {
+            return response.getHeader(name);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new FilterInputStream(response.getInputStream()) {
+                    public int read() throws IOException {
+                        byte[] one = new byte[1];
+                        int n = read(one, 0, 1);
+                        return n <= 0 ? -1 : (one[0] & 0xFF);
+                    }
+
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        try {
+                            int n = super.read(b, off, len);
+                            if (n > 0) {
+                                bytes += n;
+                            }
+                            return n;
+                        } catch (InterruptedIOException e) {
+                            throw e;
+                        } catch (IOException e) {
+                            failed = true;
+                            throw e;
+                        }
+                    }
+                };
+            }
+            return in;
+        }
+
+        public FileChannel getChannel() throws IOException {
+            FileChannel c = response.getChannel();
+            if (c != null) {
+                usedChannel = true;
+            }
+            return c;
+        }
+
+        public void close() {
+            response.close();
+            if (start == 0) {
+                return;
+            }
+            long ms = System.currentTimeMillis() - start;
+            start = 0;
+            if (usedChannel) {
+                bytes = response.getContentLength();
+            }
+            if (failed) {
+                recordFailure();
+            } else if (response.getStatus() < 400) {
+                recordSuccess();
+                recordTransfer(bytes, ms);
+            }
+            finished();
+        }
+    }
+}
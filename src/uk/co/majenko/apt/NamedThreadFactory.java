@@ -0,0 +1,21 @@
+package uk.co.majenko.apt;
+
+import java.util.concurrent.*;
+
+// Daemon worker threads with a recognisable name, so a stuck pool never
+// keeps the JVM alive and shows up clearly in a thread dump.
+
+class NamedThreadFactory implements ThreadFactory {
+    String prefix;
+    int count = 0;
+
+    NamedThreadFactory(String p) {
+        prefix = p;
+    }
+
+    public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + "-" + (count++));
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -1,55 +1,44 @@
 package uk.co.majenko.apt;
 
 import java.util.*;
-import java.util.regex.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.security.*;
 
 import org.apache.commons.compress.archivers.ar.*;
 import org.apache.commons.compress.archivers.tar.*;
-import org.apache.commons.compress.compressors.gzip.*;
-import org.apache.commons.compress.compressors.xz.*;
-import org.apache.commons.compress.compressors.bzip2.*;
+import org.apache.commons.io.input.CountingInputStream;
 
 public class Package implements Comparable, Serializable {
     public HashMap<String, String> properties = new HashMap<String, String>();
     public boolean isValid = false;
     public AptPercentageListener pct = null;
+    transient TransactionProgress progress = null;
+    transient long extracted = 0;
 
     public int stateCode = 0;
 
+    // Parsed once and reused for as long as the Version field is unchanged.
+    transient Version version = null;
+    transient String versionSource = null;
+
     public int getState() { return stateCode; }
     public void setState(int c) { 
         stateCode = c; 
     }
 
     public Package(String data) {
-        String[] lines = data.split("\n");
-        Pattern p = Pattern.compile("^([^:]+):\\s+(.*)$", Pattern.MULTILINE);
-
-        String currentLine = "";
-        for (String line : lines) {
-            if (line.startsWith(" ")) {
-                currentLine += "\n";
-                currentLine += line;
-            } else {
-                int colon = currentLine.indexOf(":");
-                if (colon > 0) {
-                    properties.put(currentLine.substring(0, colon), currentLine.substring(colon+2));
-                }
-                currentLine = line;
-            }
-        }
-        if (!currentLine.equals("")) {
-            int colon = currentLine.indexOf(":");
-            if (colon > 0) {
-                properties.put(currentLine.substring(0, colon), currentLine.substring(colon+2));
-            }
-        }
+        this((String)null, data);
+    }
 
+    public Package(HashMap<String, String> props, String source) {
+        properties = props;
+        if (source != null) {
+            properties.put("Repository", source);
+        }
         isValid = (getName() != null);
     }
-                    
 
     public void attachPercentageListener(AptPercentageListener listener) {
         pct = listener;
@@ -59,31 +48,23 @@ public class Package implements Comparable, Serializable {
         pct = null;
     }
 
+    // The install or upgrade this package is part of, if anyone is
+    // watching it.  Downloaded and unpacked bytes are added to it.
+    public void setTransactionProgress(TransactionProgress t) {
+        progress = t;
+    }
+
     public Package(String source, String data) {
-        String[] lines = data.split("\n");
-        Pattern p = Pattern.compile("^([^:]+):\\s+(.*)$", Pattern.MULTILINE);
-
-        String currentLine = "";
-        for (String line : lines) {
-            if (line.startsWith(" ")) {
-                currentLine += "\n";
-                currentLine += line;
-            } else {
-                int colon = currentLine.indexOf(":");
-                if (colon > 0) {
-                    properties.put(currentLine.substring(0, colon), currentLine.substring(colon+2));
-                }
-                currentLine = line;
-            }
-        }
-        if (!currentLine.equals("")) {
-            int colon = currentLine.indexOf(":");
-            if (colon > 0) {
-                properties.put(currentLine.substring(0, colon), currentLine.substring(colon+2));
-            }
+        try {
+            PackageReader r = new PackageReader(new StringReader(data), source);
+            r.readStanza(properties);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 
-        properties.put("Repository", source);
+        if (source != null) {
+            properties.put("Repository", source);
+        }
         isValid = (getName() != null);
     }
 
@@ -92,7 +73,19 @@ public class Package implements Comparable, Serializable {
     }
 
     public Version getVersion() {
-        return new Version(properties.get("Version"));
+        String v = properties.get("Version");
+        Version cached = version;
+        if ((cached == null) || (versionSource != v)) {
+            cached = new Version(v);
+            versionSource = v;
+            version = cached;
+        }
+        return cached;
+    }
+
+    // Compare the versions of two packages without creating anything.
+    public int compareVersion(Package other) {
+        return Version.compare(getVersion().chunks, other.getVersion().chunks);
     }
 
     public String getName() {
@@ -159,6 +152,23 @@ public class Package implements Comparable, Serializable {
         return out.toArray(new String[0]);
     }
 
+    // The Depends (and optionally Recommends) fields parsed into groups of
+    // alternative relations.
+    public Relation[][] getRelations(boolean incRec) {
+        String deps = properties.get("Depends");
+        if (incRec) {
+            String rec = properties.get("Recommends");
+            if (rec != null) {
+                if (deps == null) {
+                    deps = rec;
+                } else {
+                    deps += ", " + rec;
+                }
+            }
+        }
+        return Relation.parse(deps);
+    }
+
     public String getSection() {
         return properties.get("Section");
     }
@@ -172,50 +182,374 @@ public class Package implements Comparable, Serializable {
     }
 
     public boolean fetchPackage(File folder) {
+        return fetchPackage(folder, new RetryPolicy());
+    }
+
+    // Download the package into the cache folder.  Data goes into a
+    // .partial file first, and only once it is complete is it renamed to
+    // its real name.  If the transfer breaks, later attempts (and later
+    // calls) carry on from the end of the partial file using an HTTP range
+    // request instead of starting again.
+    public boolean fetchPackage(File folder, RetryPolicy policy) {
+        return fetchPackage(folder, policy, null);
+    }
+
+    // As above, but fetching through the mirrors of the given source.  A
+    // failure that leaves another mirror to try moves on to it at once.
+    public boolean fetchPackage(File folder, RetryPolicy policy, Source source) {
         File downloadTo = new File(folder, getFilename());
-        try {
-            URL downloadFrom = getURI().toURL();
-            HttpURLConnection httpConn = (HttpURLConnection) downloadFrom.openConnection();
-            int contentLength = httpConn.getContentLength();
+        File partial = new File(folder, getFilename() + ".partial");
 
-            if (downloadTo.exists()) {
-                if (downloadTo.length() == contentLength) {
+        if (isCached(folder)) {
+            Metrics.count("cache.hit", getFilename());
+            if (progress != null) {
+                progress.skip(this, Math.max(getSize(), 0));
+            }
+            return true;
+        }
+        Metrics.count("cache.miss", getFilename());
+        if ((progress != null) && partial.exists()) {
+            progress.skip(this, partial.length());
+        }
+
+        Metric m = Metrics.start("package.fetch", getFilename());
+        Mirror[] tried = { null };
+        try {
+            for (int attempt = 0; ; attempt++) {
+                m.set("attempts", attempt + 1);
+                tried[0] = null;
+                try {
+                    downloadOnce(downloadTo, partial, source, tried, m);
                     return true;
+                } catch (InterruptedIOException e) {
+                    m.set("error", "cancelled");
+                    return false;
+                } catch (FileNotFoundException e) {
+                    m.set("error", e.getMessage());
+                    System.err.println(e.getMessage());
+                    return false;
+                } catch (Exception e) {
+                    if (!policy.shouldRetry(attempt)) {
+                        m.set("error", e.toString());
+                        e.printStackTrace();
+                        return false;
+                    }
+                    System.err.println("Download of " + getFilename() + " failed (" + e.getMessage() + "), retrying");
+                    if ((source != null) && (tried[0] != null) && (source.nextMirror() != tried[0]) && !source.nextMirror().isDown()) {
+                        continue;
+                    }
+                    try {
+                        policy.pause(attempt);
+                    } catch (InterruptedException ie) {
+                        m.set("error", "cancelled");
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            Metrics.finish(m);
+        }
+    }
+
+    // The size the Packages stanza says the .deb is, or -1 if it doesn't.
+    public long getSize() {
+        try {
+            return Long.parseLong(properties.get("Size").trim());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    // Is there a good copy of this package in the cache folder?  This never
+    // touches the network: the file is checked against the Size and
+    // checksum given in the Packages stanza.  A file that fails the check
+    // is thrown away.
+    public boolean isCached(File folder) {
+        File f = new File(folder, getFilename());
+        if (!f.exists()) {
+            return false;
+        }
+        long size = getSize();
+        if ((size >= 0) && (f.length() != size)) {
+            Checksum.forget(f);
+            f.delete();
+            return false;
+        }
+        Checksum sum = Checksum.forPackage(this);
+        if (sum == null) {
+            return true;
+        }
+        try {
+            if (sum.verify(f)) {
+                return true;
+            }
+            System.err.println("Cached " + getFilename() + " is corrupt, fetching again");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Checksum.forget(f);
+        f.delete();
+        return false;
+    }
+
+    // The mirror used, if any, is left in tried[0].  A body that turns out
+    // to be bad counts against that mirror.
+    void downloadOnce(File downloadTo, File partial, Source source, Mirror[] tried, Metric m) throws IOException {
+        long have = partial.exists() ? partial.length() : 0;
+
+        // A partial file may already be whole, say if we stopped just
+        // before renaming it.  Asking for the range after its end would
+        // only get a 416 and throw it away.
+        long size = getSize();
+        if ((size >= 0) && (have >= size)) {
+            if ((have == size) && completePartial(downloadTo, partial)) {
+                return;
+            }
+            partial.delete();
+            have = 0;
+        }
+
+        HashMap<String, String> headers = new HashMap<String, String>();
+        if (have > 0) {
+            headers.put("Range", "bytes=" + have + "-");
+        }
+
+        TransportResponse response;
+        if (source != null) {
+            response = source.open(properties.get("Filename"), headers);
+        } else {
+            response = Transports.open(getURI(), headers);
+        }
+        Mirror.Response mr = (response instanceof Mirror.Response) ? (Mirror.Response)response : null;
+        if (mr != null) {
+            tried[0] = mr.getMirror();
+        }
+        try {
+            downloadBody(response, downloadTo, partial, have, m);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            if (mr != null) {
+                mr.fail();
+            }
+            throw e;
+        } finally {
+            response.close();
+        }
+    }
+
+    // Move a partial file that matches the package's checksum into place.
+    boolean completePartial(File downloadTo, File partial) throws IOException {
+        Checksum sum = Checksum.forPackage(this);
+        String digest = null;
+        if (sum != null) {
+            MessageDigest md = sum.newDigest();
+            Checksum.update(md, partial);
+            digest = Checksum.hex(md.digest());
+            if (!sum.matches(digest)) {
+                return false;
+            }
+        }
+        downloadTo.delete();
+        Checksum.forget(downloadTo);
+        if (!partial.renameTo(downloadTo)) {
+            throw new IOException("Unable to move " + partial + " into place");
+        }
+        if (digest != null) {
+            sum.record(downloadTo, digest);
+        }
+        return true;
+    }
+
+    void downloadBody(TransportResponse response, File downloadTo, File partial, long have, Metric m) throws IOException {
+        int code = response.getStatus();
+        long total = response.getContentLength();
+        boolean append = false;
+
+        if (code == 206) {
+            // Content-Range: bytes <start>-<end>/<total>
+            String range = response.getHeader("Content-Range");
+            long start = -1;
+            total = -1;
+            if ((range != null) && range.startsWith("bytes ")) {
+                try {
+                    int dash = range.indexOf('-');
+                    int slash = range.indexOf('/');
+                    start = Long.parseLong(range.substring(6, dash).trim());
+                    if (!range.substring(slash + 1).trim().equals("*")) {
+                        total = Long.parseLong(range.substring(slash + 1).trim());
+                    }
+                } catch (Exception e) {
+                    start = -1;
                 }
             }
-            InputStream in = httpConn.getInputStream();
-            BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(downloadTo));
+            if (start != have) {
+                partial.delete();
+                throw new IOException("Server sent the wrong range (" + range + ") for " + getFilename());
+            }
+            append = true;
+        } else if (code == 416) {
+            // Range not satisfiable: whatever we have is no use.
+            partial.delete();
+            throw new IOException("Server refused to resume " + getFilename());
+        } else if ((code >= 400) && (code < 500) && (code != 408) && (code != 429)) {
+            throw new FileNotFoundException("Unable to download " + getFilename() + ": status " + code);
+        } else if (code != 200) {
+            throw new IOException("Status " + code + " fetching " + getFilename());
+        } else {
+            have = 0;
+        }
+
+        Checksum sum = Checksum.forPackage(this);
+        MessageDigest md = null;
+        if (sum != null) {
+            md = sum.newDigest();
+        }
+
+        FileChannel source = response.getChannel();
+        if (source != null) {
+            // A local file: let the OS copy it, then check what we ended
+            // up with.
+            copyChannel(source, partial, append, have, total, m);
+            if (md != null) {
+                Checksum.update(md, partial);
+            }
+        } else {
+            // The checksum is worked out as the data is written.  When
+            // resuming, the part we already have is fed in first.
+            if ((md != null) && append) {
+                Checksum.update(md, partial);
+            }
+            copyStream(response.getInputStream(), partial, append, have, total, md, m);
+        }
+
+        if ((total >= 0) && (partial.length() != total)) {
+            throw new IOException("Incomplete download of " + getFilename() + " (" + partial.length() + " of " + total + " bytes)");
+        }
+
+        String digest = null;
+        if (md != null) {
+            digest = Checksum.hex(md.digest());
+            if (!sum.matches(digest)) {
+                partial.delete();
+                throw new IOException("Checksum mismatch on " + getFilename());
+            }
+        }
 
-            byte[] buffer = new byte[1024];
-            int n;
-            long tot = 0;
-            int lastVal = -1;
+        downloadTo.delete();
+        Checksum.forget(downloadTo);
+        if (!partial.renameTo(downloadTo)) {
+            throw new IOException("Unable to move " + partial + " into place");
+        }
+        if (digest != null) {
+            sum.record(downloadTo, digest);
+        }
+    }
+
+    void reportProgress(long done, long total, int[] last) {
+        if (total > 0) {
+            int tpct = (int)((done * 100) / total);
+            if (tpct != last[0]) {
+                last[0] = tpct;
+                reportPercentage(tpct);
+            }
+        }
+    }
+
+    // done bytes of the .deb have now been read for unpacking.
+    void extractProgress(long done, long length, int[] last) {
+        if (progress != null) {
+            progress.add(this, done - extracted);
+        }
+        extracted = done;
+        reportProgress(done, length, last);
+    }
+
+    void copyStream(InputStream in, File partial, boolean append, long have, long total, MessageDigest md, Metric m) throws IOException {
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(partial, append));
+        byte[] buffer = new byte[65536];
+        int n;
+        long tot = have;
+        int[] last = { -1 };
+        try {
             while ((n = in.read(buffer)) > 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Download of " + getFilename() + " cancelled");
+                }
                 tot += n;
-                if (contentLength != -1) {
-                    int tpct = (int)((tot * 100) / contentLength);
-                    if (tpct != lastVal) {
-                        lastVal = tpct;
-                        reportPercentage(tpct);
-                    }
+                m.add("bytes", n);
+                if (progress != null) {
+                    progress.add(this, n);
                 }
+                reportProgress(tot, total, last);
                 out.write(buffer, 0, n);
+                if (md != null) {
+                    md.update(buffer, 0, n);
+                }
             }
+        } finally {
             in.close();
             out.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (downloadTo.exists()) {
-                downloadTo.delete();
+        }
+    }
+
+    static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+    void copyChannel(FileChannel in, File partial, boolean append, long have, long total, Metric m) throws IOException {
+        FileOutputStream fos = new FileOutputStream(partial, append);
+        FileChannel out = fos.getChannel();
+        long pos = in.position();
+        long end = in.size();
+        long tot = have;
+        int[] last = { -1 };
+        try {
+            while (pos < end) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Download of " + getFilename() + " cancelled");
+                }
+                long n = in.transferTo(pos, Math.min(TRANSFER_CHUNK, end - pos), out);
+                if (n <= 0) {
+                    break;
+                }
+                pos += n;
+                tot += n;
+                m.add("bytes", n);
+                if (progress != null) {
+                    progress.add(this, n);
+                }
+                reportProgress(tot, total, last);
             }
-            return false;
+        } finally {
+            out.close();
+            fos.close();
         }
-        return true;
     }
 
     // Extract a package and install it. Returns the control file
     // contents as a string.
     public boolean extractPackage(File cache, File db, File root) {
+        ExtractionPipeline pipeline = new ExtractionPipeline();
+        try {
+            return extractPackage(cache, db, root, pipeline);
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    // As above, writing the files through a pipeline that may be shared
+    // with other packages.
+    public boolean extractPackage(File cache, File db, File root, ExtractionPipeline pipeline) {
+        Metric m = Metrics.start("package.extract", getFilename());
+        try {
+            return extract(cache, db, root, pipeline, m);
+        } finally {
+            Metrics.finish(m);
+        }
+    }
+
+    boolean extract(File cache, File db, File root, ExtractionPipeline pipeline, Metric m) {
         String control = "";
         HashMap<String, Integer> installedFiles = new HashMap<String, Integer>();
         try {
@@ -226,216 +560,34 @@ public class Package implements Comparable, Serializable {
             }
 
 
+            // Progress is judged by how much of the .deb has been read.
+            long length = src.length();
+            extracted = 0;
             FileInputStream fis = new FileInputStream(src);
-            ArArchiveInputStream ar = new ArArchiveInputStream(fis);
+            CountingInputStream counter = new CountingInputStream(fis);
+            ArArchiveInputStream ar = new ArArchiveInputStream(counter);
 
             ArArchiveEntry file = ar.getNextArEntry();
             while (file != null) {
-                long size = file.getSize();
                 String name = file.getName();
 
-
-                if (name.equals("control.tar.gz")) {
-                    GzipCompressorInputStream gzip = new GzipCompressorInputStream(ar);
-                    TarArchiveInputStream tar = new TarArchiveInputStream(gzip);
-                    TarArchiveEntry te = tar.getNextTarEntry();
-                    while (te != null) {
-                        int tsize = (int)te.getSize();
-                        String tname = te.getName();
-                        if (tname.equals("./control")) {
-                            byte[] data = new byte[tsize];
-                            tar.read(data, 0, tsize);
-                            control = new String(data, "UTF-8");
-                        }
-                        te = tar.getNextTarEntry();
-                    }
-
-                }
-
-                if (name.equals("data.tar.gz")) {
-                    HashMap<String, String> symbolicLinks = new HashMap<String, String>();
-                    GzipCompressorInputStream gzip = new GzipCompressorInputStream(ar);
-                    TarArchiveInputStream tar = new TarArchiveInputStream(gzip);
-                    TarArchiveEntry te = tar.getNextTarEntry();
-                    while (te != null) {
-                        int tsize = (int)te.getSize();
-                        String tname = te.getName();
-                        if (pct != null) {
-                            long done = src.length() - (long)fis.available();
-                            int tpct = (int)((done * 100L) / src.length());
-                            reportPercentage(tpct);
-                        }
-
-                        File dest = new File(root, tname);
-                        if (te.isDirectory()) {
-                            dest.mkdirs();
-                            installedFiles.put(dest.getAbsolutePath(), -1);
-                        } else if (te.isLink()) {
-                            String linkdest = te.getLinkName();
-                            symbolicLinks.put(tname, linkdest);
-                        } else if (te.isSymbolicLink()) {
-                            String linkdest = te.getLinkName();
-                            symbolicLinks.put(tname, linkdest);
-                        } else {
-                            byte[] buffer = new byte[1024];
-                            int nread;
-                            int toRead = tsize;
-                            FileOutputStream fos = new FileOutputStream(dest);
-                            while ((nread = tar.read(buffer, 0, toRead > 1024 ? 1024 : toRead)) > 0) {
-                                toRead -= nread;
-                                fos.write(buffer, 0, nread);
-                            }
-                            fos.close();
-                            dest.setExecutable((te.getMode() & 0100) == 0100);
-                            dest.setWritable((te.getMode() & 0200) == 0200);
-                            dest.setReadable((te.getMode() & 0400) == 0400);
-                            installedFiles.put(dest.getAbsolutePath(), tsize);
-                        }
-                        te = tar.getNextTarEntry();
-                    }
-                    for (String link : symbolicLinks.keySet()) {
-                        String tgt = symbolicLinks.get(link);
-                        File linkFile = new File(root, link);
-                        File linkParent = linkFile.getParentFile();
-                        File tgtFile = new File(linkParent, tgt);
-                        FileInputStream copyFrom = new FileInputStream(tgtFile);
-                        FileOutputStream copyTo = new FileOutputStream(linkFile);
-                        byte[] copyBuffer = new byte[1024];
-                        int bytesCopied = 0;
-
-                        while ((bytesCopied = copyFrom.read(copyBuffer, 0, 1024)) > 0) {
-                            copyTo.write(copyBuffer, 0, bytesCopied);
-                        }
-                        copyFrom.close();
-                        copyTo.close();
-                        linkFile.setExecutable(tgtFile.canExecute());
-                        linkFile.setReadable(tgtFile.canRead());
-                        linkFile.setWritable(tgtFile.canWrite());
-                    }
-                }
-                    
-                if (name.equals("data.tar.xz")) {
-                    HashMap<String, String> symbolicLinks = new HashMap<String, String>();
-                    XZCompressorInputStream gzip = new XZCompressorInputStream(ar);
-                    TarArchiveInputStream tar = new TarArchiveInputStream(gzip);
-                    TarArchiveEntry te = tar.getNextTarEntry();
-                    while (te != null) {
-                        int tsize = (int)te.getSize();
-                        String tname = te.getName();
-                        if (pct != null) {
-                            long done = src.length() - (long)fis.available();
-                            int tpct = (int)((done * 100L) / src.length());
-                            reportPercentage(tpct);
-                        }
-
-                        File dest = new File(root, tname);
-                        if (te.isDirectory()) {
-                            dest.mkdirs();
-                            installedFiles.put(dest.getAbsolutePath(), -1);
-                        } else if (te.isLink()) {
-                            String linkdest = te.getLinkName();
-                            symbolicLinks.put(tname, linkdest);
-                        } else if (te.isSymbolicLink()) {
-                            String linkdest = te.getLinkName();
-                            symbolicLinks.put(tname, linkdest);
-                        } else {
-                            byte[] buffer = new byte[1024];
-                            int nread;
-                            int toRead = tsize;
-                            FileOutputStream fos = new FileOutputStream(dest);
-                            while ((nread = tar.read(buffer, 0, toRead > 1024 ? 1024 : toRead)) > 0) {
-                                toRead -= nread;
-                                fos.write(buffer, 0, nread);
-                            }
-                            fos.close();
-                            dest.setExecutable((te.getMode() & 0100) == 0100);
-                            dest.setWritable((te.getMode() & 0200) == 0200);
-                            dest.setReadable((te.getMode() & 0400) == 0400);
-                            installedFiles.put(dest.getAbsolutePath(), tsize);
-                        }
-                        te = tar.getNextTarEntry();
-                    }
-                    for (String link : symbolicLinks.keySet()) {
-                        String tgt = symbolicLinks.get(link);
-                        File linkFile = new File(root, link);
-                        File linkParent = linkFile.getParentFile();
-                        File tgtFile = new File(linkParent, tgt);
-                        FileInputStream copyFrom = new FileInputStream(tgtFile);
-                        FileOutputStream copyTo = new FileOutputStream(linkFile);
-                        byte[] copyBuffer = new byte[1024];
-                        int bytesCopied = 0;
-
-                        while ((bytesCopied = copyFrom.read(copyBuffer, 0, 1024)) > 0) {
-                            copyTo.write(copyBuffer, 0, bytesCopied);
-                        }
-                        copyFrom.close();
-                        copyTo.close();
-                        linkFile.setExecutable(tgtFile.canExecute());
-                        linkFile.setReadable(tgtFile.canRead());
-                        linkFile.setWritable(tgtFile.canWrite());
-                    }
+                // GNU ar marks the end of a name with a slash.
+                if (name.endsWith("/")) {
+                    name = name.substring(0, name.length() - 1);
                 }
 
-                if (name.equals("data.tar.bz2")) {
-                    HashMap<String, String> symbolicLinks = new HashMap<String, String>();
-                    BZip2CompressorInputStream gzip = new BZip2CompressorInputStream(ar);
-                    TarArchiveInputStream tar = new TarArchiveInputStream(gzip);
-                    TarArchiveEntry te = tar.getNextTarEntry();
-                    while (te != null) {
-                        int tsize = (int)te.getSize();
-                        String tname = te.getName();
-                        if (pct != null) {
-                            long done = src.length() - (long)fis.available();
-                            int tpct = (int)((done * 100L) / src.length());
-                            reportPercentage(tpct);
-                        }
-
-                        File dest = new File(root, tname);
-                        if (te.isDirectory()) {
-                            dest.mkdirs();
-                            installedFiles.put(dest.getAbsolutePath(), -1);
-                        } else if (te.isLink()) {
-                            String linkdest = te.getLinkName();
-                            symbolicLinks.put(tname, linkdest);
-                        } else if (te.isSymbolicLink()) {
-                            String linkdest = te.getLinkName();
-                            symbolicLinks.put(tname, linkdest);
-                        } else {
-                            byte[] buffer = new byte[1024];
-                            int nread;
-                            int toRead = tsize;
-                            FileOutputStream fos = new FileOutputStream(dest);
-                            while ((nread = tar.read(buffer, 0, toRead > 1024 ? 1024 : toRead)) > 0) {
-                                toRead -= nread;
-                                fos.write(buffer, 0, nread);
-                            }
-                            fos.close();
-                            dest.setExecutable((te.getMode() & 0100) == 0100);
-                            dest.setWritable((te.getMode() & 0200) == 0200);
-                            dest.setReadable((te.getMode() & 0400) == 0400);
-                            installedFiles.put(dest.getAbsolutePath(), tsize);
-                        }
-                        te = tar.getNextTarEntry();
+                if (name.startsWith("control.tar")) {
+                    PayloadDecoder decoder = PayloadDecoders.forName(name, "control.tar");
+                    if (decoder == null) {
+                        throw new IOException("Unsupported control archive " + name);
                     }
-                    for (String link : symbolicLinks.keySet()) {
-                        String tgt = symbolicLinks.get(link);
-                        File linkFile = new File(root, link);
-                        File linkParent = linkFile.getParentFile();
-                        File tgtFile = new File(linkParent, tgt);
-                        FileInputStream copyFrom = new FileInputStream(tgtFile);
-                        FileOutputStream copyTo = new FileOutputStream(linkFile);
-                        byte[] copyBuffer = new byte[1024];
-                        int bytesCopied = 0;
-
-                        while ((bytesCopied = copyFrom.read(copyBuffer, 0, 1024)) > 0) {
-                            copyTo.write(copyBuffer, 0, bytesCopied);
-                        }
-                        copyFrom.close();
-                        copyTo.close();
-                        linkFile.setExecutable(tgtFile.canExecute());
-                        linkFile.setReadable(tgtFile.canRead());
-                        linkFile.setWritable(tgtFile.canWrite());
+                    control = readControl(decoder.decode(ar));
+                } else if (name.startsWith("data.tar")) {
+                    PayloadDecoder decoder = PayloadDecoders.forName(name, "data.tar");
+                    if (decoder == null) {
+                        throw new IOException("Unsupported data archive " + name);
                     }
+                    extractData(decoder.decode(ar), root, installedFiles, counter, length, pipeline, m);
                 }
 
                 file = ar.getNextArEntry();
@@ -444,12 +596,12 @@ public class Package implements Comparable, Serializable {
 
             ar.close();
             fis.close();
-            
+            extractProgress(length, length, new int[] { -1 });
 
             File pf = new File(db, getName());
             pf.mkdirs();
             File cf = new File(pf, "control");
-            PrintWriter pw = new PrintWriter(cf);
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cf), "UTF-8")));
             pw.println(control);
             pw.close();
             File ff = new File(pf, "files");
@@ -459,6 +611,7 @@ public class Package implements Comparable, Serializable {
             }
             pw.close();
         } catch (Exception e) {
+            m.set("error", e.toString());
             e.printStackTrace();
             return false;
         }
@@ -466,6 +619,106 @@ public class Package implements Comparable, Serializable {
         return true;
     }
 
+    // Pull the control file out of a control tarball.
+    String readControl(InputStream data) throws IOException {
+        String control = "";
+        TarArchiveInputStream tar = new TarArchiveInputStream(data);
+        TarArchiveEntry te = tar.getNextTarEntry();
+        while (te != null) {
+            String tname = te.getName();
+            if (tname.equals("./control") || tname.equals("control")) {
+                byte[] buffer = new byte[(int)te.getSize()];
+                int got = 0;
+                int n;
+                while ((got < buffer.length) && ((n = tar.read(buffer, got, buffer.length - got)) > 0)) {
+                    got += n;
+                }
+                control = new String(buffer, 0, got, "UTF-8");
+            }
+            te = tar.getNextTarEntry();
+        }
+        return control;
+    }
+
+    // Unpack a data tarball into root.  Decompression happens on this
+    // thread while the files themselves are written by the pipeline.
+    // Links are only made once everything they might point at is written.
+    void extractData(InputStream data, File root, HashMap<String, Integer> installedFiles, CountingInputStream counter, long length, ExtractionPipeline pipeline, Metric m) throws IOException {
+        LinkedHashMap<String, String> hardLinks = new LinkedHashMap<String, String>();
+        LinkedHashMap<String, String> symbolicLinks = new LinkedHashMap<String, String>();
+        TarArchiveInputStream tar = new TarArchiveInputStream(data);
+        int[] last = { -1 };
+        String top = root.getCanonicalPath();
+        pipeline.begin();
+        try {
+            TarArchiveEntry te = tar.getNextTarEntry();
+            while (te != null) {
+                long tsize = te.getSize();
+                String tname = te.getName();
+                extractProgress(counter.getByteCount(), length, last);
+
+                File dest = new File(root, tname);
+                if ((te.isLink() || te.isSymbolicLink()) ? !FileLinker.canPlace(top, dest) : !FileLinker.isWithin(top, dest)) {
+                    System.err.println("Refusing to unpack " + tname + " outside of " + root);
+                } else if (te.isDirectory()) {
+                    dest.mkdirs();
+                    installedFiles.put(dest.getAbsolutePath(), -1);
+                } else if (te.isLink()) {
+                    String linkdest = te.getLinkName();
+                    hardLinks.put(tname, linkdest);
+                } else if (te.isSymbolicLink()) {
+                    String linkdest = te.getLinkName();
+                    symbolicLinks.put(tname, linkdest);
+                } else {
+                    pipeline.write(dest, te.getMode(), tar, tsize);
+                    installedFiles.put(dest.getAbsolutePath(), (int)tsize);
+                }
+                te = tar.getNextTarEntry();
+            }
+            pipeline.finish();
+        } finally {
+            pipeline.abort();
+            m.add("bytes", pipeline.getBytes());
+            m.add("files", pipeline.getFiles());
+            m.add("decompressNanos", pipeline.getReadNanos());
+            m.add("writeNanos", pipeline.getWriteNanos());
+        }
+
+        // Hard link targets are named from the top of the archive.
+        for (String link : hardLinks.keySet()) {
+            File linkFile = new File(root, link);
+            File tgtFile = new File(root, hardLinks.get(link));
+            if (!FileLinker.canPlace(top, linkFile) || !FileLinker.isWithin(top, tgtFile)) {
+                System.err.println("Refusing to link " + link + " outside of " + root);
+                continue;
+            }
+            if (!FileLinker.hardlink(linkFile, tgtFile)) {
+                FileLinker.copy(tgtFile, linkFile);
+            }
+            installedFiles.put(linkFile.getAbsolutePath(), 0);
+        }
+
+        // Symbolic link targets are relative to the link itself, and an
+        // absolute one means from the top of root, not of the host.
+        for (String link : symbolicLinks.keySet()) {
+            String tgt = FileLinker.rootedTarget(link, symbolicLinks.get(link));
+            File linkFile = new File(root, link);
+            File tgtFile = (tgt == null) ? null : new File(linkFile.getParentFile(), tgt);
+            if ((tgtFile == null) || !FileLinker.canPlace(top, linkFile) || !FileLinker.isWithin(top, tgtFile)) {
+                System.err.println("Refusing to link " + link + " to " + symbolicLinks.get(link) + " outside of " + root);
+                continue;
+            }
+            if (!FileLinker.symlink(linkFile, tgt)) {
+                if (tgtFile.isDirectory()) {
+                    System.err.println("Unable to link " + link + " to directory " + tgt);
+                    continue;
+                }
+                FileLinker.copy(tgtFile, linkFile);
+            }
+            installedFiles.put(linkFile.getAbsolutePath(), 0);
+        }
+    }
+
     void reportPercentage(int p) {
         if (pct != null) {
             if (p < 0) {
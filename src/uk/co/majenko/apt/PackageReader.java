@@ -0,0 +1,94 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+
+// Reads control stanzas one at a time straight from a stream.  Only the
+// stanza currently being read is ever held in memory, so an index of any
+// size can be parsed as it is downloaded or decompressed.
+
+public class PackageReader {
+    BufferedReader in;
+    String repository;
+
+    public PackageReader(InputStream is, String repo) throws UnsupportedEncodingException {
+        this(new InputStreamReader(is, "UTF-8"), repo);
+    }
+
+    public PackageReader(Reader r, String repo) {
+        if (r instanceof BufferedReader) {
+            in = (BufferedReader)r;
+        } else {
+            in = new BufferedReader(r, 65536);
+        }
+        repository = repo;
+    }
+
+    // Returns the next valid package, or null once the stream is exhausted.
+    public Package next() throws IOException {
+        while (true) {
+            HashMap<String, String> props = new HashMap<String, String>();
+            if (!readStanza(props)) {
+                return null;
+            }
+            Package p = new Package(props, repository);
+            if (p.isValid) {
+                return p;
+            }
+        }
+    }
+
+    // Read the fields of one blank-line terminated stanza into props.
+    // Continuation lines (starting with a space or tab) are joined to the
+    // field they belong to with a newline.  Returns false if the stream
+    // ended before any field was found.
+    public boolean readStanza(HashMap<String, String> props) throws IOException {
+        String key = null;
+        StringBuilder value = null;
+        boolean found = false;
+        String line;
+
+        while ((line = in.readLine()) != null) {
+            if (line.trim().length() == 0) {
+                if (found) {
+                    break;
+                }
+                continue;
+            }
+
+            if ((line.charAt(0) == ' ') || (line.charAt(0) == '\t')) {
+                if (value != null) {
+                    value.append("\n");
+                    value.append(line);
+                }
+                continue;
+            }
+
+            if (key != null) {
+                props.put(key, value.toString());
+                key = null;
+                value = null;
+            }
+
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                int start = colon + 1;
+                while ((start < line.length()) && ((line.charAt(start) == ' ') || (line.charAt(start) == '\t'))) {
+                    start++;
+                }
+                key = line.substring(0, colon);
+                value = new StringBuilder(line.substring(start));
+                found = true;
+            }
+        }
+
+        if (key != null) {
+            props.put(key, value.toString());
+        }
+        return found;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
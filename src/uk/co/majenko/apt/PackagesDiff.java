@@ -0,0 +1,215 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.regex.*;
+
+// The Packages.diff/Index of a section, as used by Debian's pdiff scheme.
+// It gives the hash of the current Packages file, the hashes of older
+// versions of it, and for each older version the name of the patch that
+// turns it into the next one.  The patches themselves are gzipped ed
+// scripts in the same folder.  If the hash of our local copy is in the
+// history, applying the patches from there on brings it up to date.
+
+public class PackagesDiff {
+    static final Pattern COMMAND = Pattern.compile("^(\\d+)(?:,(\\d+))?([acd])$");
+
+    String algorithm;
+    String current = null;
+    ArrayList<String[]> history = new ArrayList<String[]>();
+    HashMap<String, String> patchHashes = new HashMap<String, String>();
+
+    static class Edit {
+        int from;
+        int to;
+        char op;
+        ArrayList<String> text = new ArrayList<String>();
+    }
+
+    public static PackagesDiff read(InputStream in) throws IOException {
+        HashMap<String, ArrayList<String>> fields = new HashMap<String, ArrayList<String>>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, "ISO-8859-1"));
+        String line;
+        ArrayList<String> field = null;
+        while ((line = r.readLine()) != null) {
+            if (line.startsWith(" ") || line.startsWith("\t")) {
+                if (field != null) {
+                    field.add(line.trim());
+                }
+                continue;
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                field = null;
+                continue;
+            }
+            field = new ArrayList<String>();
+            String value = line.substring(colon + 1).trim();
+            if (!value.equals("")) {
+                field.add(value);
+            }
+            fields.put(line.substring(0, colon).trim(), field);
+        }
+
+        // SHA256 where the index has it, otherwise SHA1.
+        PackagesDiff diff = new PackagesDiff();
+        String prefix;
+        if (fields.get("SHA256-Current") != null) {
+            prefix = "SHA256";
+            diff.algorithm = "SHA-256";
+        } else if (fields.get("SHA1-Current") != null) {
+            prefix = "SHA1";
+            diff.algorithm = "SHA-1";
+        } else {
+            throw new IOException("Diff index has no current hash");
+        }
+
+        diff.current = fields.get(prefix + "-Current").get(0).split("\\s+")[0].toLowerCase();
+        if (fields.get(prefix + "-History") != null) {
+            for (String h : fields.get(prefix + "-History")) {
+                String[] parts = h.split("\\s+");
+                if (parts.length == 3) {
+                    parts[0] = parts[0].toLowerCase();
+                    diff.history.add(parts);
+                }
+            }
+        }
+        if (fields.get(prefix + "-Patches") != null) {
+            for (String h : fields.get(prefix + "-Patches")) {
+                String[] parts = h.split("\\s+");
+                if (parts.length == 3) {
+                    diff.patchHashes.put(parts[2], parts[0].toLowerCase());
+                }
+            }
+        }
+        return diff;
+    }
+
+    public String getCurrent() {
+        return current;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No " + algorithm + " support: " + e.getMessage());
+        }
+    }
+
+    public String hash(File f) throws IOException {
+        MessageDigest md = newDigest();
+        Checksum.update(md, f);
+        return Checksum.hex(md.digest());
+    }
+
+    // The hash the index gives for an uncompressed patch, or null.
+    public String getPatchHash(String name) {
+        return patchHashes.get(name);
+    }
+
+    // The patches to apply, in order, to a file with the given hash.  An
+    // empty list means it is already current; null means it is too old
+    // (or not a version we know of) and has to be fetched in full.
+    public ArrayList<String> patchesFrom(String hash) {
+        ArrayList<String> names = new ArrayList<String>();
+        if (hash.equals(current)) {
+            return names;
+        }
+        for (int i = 0; i < history.size(); i++) {
+            if (history.get(i)[0].equals(hash)) {
+                for (int j = i; j < history.size(); j++) {
+                    names.add(history.get(j)[2]);
+                }
+                return names;
+            }
+        }
+        return null;
+    }
+
+    public static ArrayList<String> readLines(File f) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "ISO-8859-1"), 65536);
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            r.close();
+        }
+        return lines;
+    }
+
+    public static void writeLines(ArrayList<String> lines, File f) throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), "ISO-8859-1"), 65536);
+        try {
+            for (String line : lines) {
+                w.write(line);
+                w.write('\n');
+            }
+        } finally {
+            w.close();
+        }
+    }
+
+    // Apply an ed script as written by diff --ed.  Its commands run from
+    // the end of the file backwards, so they are turned round and the new
+    // file is built in a single pass.
+    public static ArrayList<String> apply(ArrayList<String> lines, InputStream script) throws IOException {
+        ArrayList<Edit> edits = new ArrayList<Edit>();
+        BufferedReader r = new BufferedReader(new InputStreamReader(script, "ISO-8859-1"));
+        String line;
+        while ((line = r.readLine()) != null) {
+            if (line.equals("")) {
+                continue;
+            }
+            Matcher m = COMMAND.matcher(line);
+            if (!m.matches()) {
+                throw new IOException("Unsupported ed command: " + line);
+            }
+            Edit e = new Edit();
+            e.from = Integer.parseInt(m.group(1));
+            e.to = (m.group(2) == null) ? e.from : Integer.parseInt(m.group(2));
+            e.op = m.group(3).charAt(0);
+            if (e.op != 'd') {
+                while (true) {
+                    line = r.readLine();
+                    if (line == null) {
+                        throw new IOException("Unterminated ed command");
+                    }
+                    if (line.equals(".")) {
+                        break;
+                    }
+                    e.text.add(line);
+                }
+            }
+            edits.add(e);
+        }
+        Collections.reverse(edits);
+
+        ArrayList<String> out = new ArrayList<String>(lines.size() + 64);
+        int pos = 0;
+        for (Edit e : edits) {
+            // Lines before the edit are kept; for 'a' that includes the
+            // line it appends after.
+            int keep = (e.op == 'a') ? e.from : e.from - 1;
+            if ((keep < pos) || (e.to > lines.size()) || (e.to < e.from)) {
+                throw new IOException("Patch does not fit at line " + e.from);
+            }
+            out.addAll(lines.subList(pos, keep));
+            pos = keep;
+            if (e.op != 'a') {
+                pos = e.to;
+            }
+            out.addAll(e.text);
+        }
+        out.addAll(lines.subList(pos, lines.size()));
+        return out;
+    }
+}
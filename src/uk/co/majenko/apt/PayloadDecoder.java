@@ -0,0 +1,9 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+
+// Turns a compressed stream into the plain data it holds.
+
+public interface PayloadDecoder {
+    public InputStream decode(InputStream in) throws IOException;
+}
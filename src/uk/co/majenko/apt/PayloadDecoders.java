@@ -0,0 +1,69 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.compress.compressors.gzip.*;
+import org.apache.commons.compress.compressors.xz.*;
+import org.apache.commons.compress.compressors.bzip2.*;
+import org.apache.commons.compress.compressors.lzma.*;
+
+// The decoders we know about, keyed by the suffix a compressed file has
+// after its base name: "data.tar.xz" is decoded by the ".xz" entry, and a
+// plain "data.tar" by the "" entry.  Adding support for another format
+// is just a matter of registering another decoder.
+
+public class PayloadDecoders {
+    static LinkedHashMap<String, PayloadDecoder> decoders = new LinkedHashMap<String, PayloadDecoder>();
+
+    static {
+        register(".xz", new PayloadDecoder() {
+            public InputStream decode(InputStream in) throws IOException {
+                return new XZCompressorInputStream(in);
+            }
+        });
+        register(".bz2", new PayloadDecoder() {
+            public InputStream decode(InputStream in) throws IOException {
+                return new BZip2CompressorInputStream(in);
+            }
+        });
+        register(".gz", new PayloadDecoder() {
+            public InputStream decode(InputStream in) throws IOException {
+                return new GzipCompressorInputStream(in);
+            }
+        });
+        register(".lzma", new PayloadDecoder() {
+            public InputStream decode(InputStream in) throws IOException {
+                return new LZMACompressorInputStream(in);
+            }
+        });
+        register("", new PayloadDecoder() {
+            public InputStream decode(InputStream in) throws IOException {
+                return in;
+            }
+        });
+    }
+
+    public static synchronized void register(String suffix, PayloadDecoder decoder) {
+        decoders.put(suffix, decoder);
+    }
+
+    public static synchronized PayloadDecoder get(String suffix) {
+        return decoders.get(suffix);
+    }
+
+    // Find the decoder for a file called name, which should be base plus
+    // a compression suffix.  Returns null if name isn't a version of base
+    // or nothing is registered for its suffix.
+    public static PayloadDecoder forName(String name, String base) {
+        if (!name.startsWith(base)) {
+            return null;
+        }
+        return get(name.substring(base.length()));
+    }
+
+    // Every registered suffix, in the order they were registered.
+    public static synchronized String[] getSuffixes() {
+        return decoders.keySet().toArray(new String[0]);
+    }
+}
@@ -0,0 +1,21 @@
+package uk.co.majenko.apt;
+
+// Passes transaction progress on to an AptPercentageListener as a plain
+// percentage, against whichever package is being worked on.
+
+public class PercentageProgressAdapter implements ProgressListener {
+    AptPercentageListener listener;
+    int last = -1;
+
+    public PercentageProgressAdapter(AptPercentageListener l) {
+        listener = l;
+    }
+
+    public void progress(TransactionProgress t) {
+        int pct = t.getPercentage();
+        if (pct != last) {
+            last = pct;
+            listener.updatePercentage(t.getCurrent(), pct);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package uk.co.majenko.apt;
+
+// Told how a whole install or upgrade is going.  Calls are rate limited
+// by the TransactionProgress and never overlap, but may come from any
+// thread.
+
+public interface ProgressListener {
+    public void progress(TransactionProgress t);
+}
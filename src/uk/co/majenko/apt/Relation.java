@@ -0,0 +1,114 @@
+package uk.co.majenko.apt;
+
+import java.util.*;
+
+// One term of a Debian style relationship field, such as "foo (>= 1.2)".
+// A field is a comma separated list of groups, and each group is a "|"
+// separated list of alternatives, any one of which will satisfy it.
+
+public class Relation {
+    String name;
+    String op;
+    Version version;
+
+    public Relation(String term) {
+        String t = term;
+
+        // Architecture and build profile restrictions don't apply to us.
+        t = t.replaceAll("\\[[^\\]]*\\]", "").replaceAll("<[^>]*>$", "");
+
+        int paren = t.indexOf('(');
+        String constraint = null;
+        if (paren >= 0) {
+            int close = t.indexOf(')', paren);
+            constraint = t.substring(paren + 1, close < 0 ? t.length() : close).trim();
+            t = t.substring(0, paren);
+        }
+
+        t = t.trim();
+        int colon = t.indexOf(':');
+        if (colon >= 0) {
+            t = t.substring(0, colon);
+        }
+        name = t;
+
+        if ((constraint != null) && (constraint.length() > 0)) {
+            int i = 0;
+            while ((i < constraint.length()) && ("<>=".indexOf(constraint.charAt(i)) >= 0)) {
+                i++;
+            }
+            op = i == 0 ? "=" : constraint.substring(0, i);
+            version = new Version(constraint.substring(i).trim());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isVersioned() {
+        return op != null;
+    }
+
+    public boolean satisfiedBy(Package p) {
+        if ((p == null) || !name.equals(p.getName())) {
+            return false;
+        }
+        if (op == null) {
+            return true;
+        }
+
+        // Version.compare() only looks at as many chunks as its first
+        // argument has, so check both ways round to tell 1.0 from 1.0.1.
+        int[] have = p.getVersion().chunks;
+        int c = Version.compare(have, version.chunks);
+        if (c == 0) {
+            c = -Version.compare(version.chunks, have);
+        }
+
+        if (op.equals("<<")) {
+            return c < 0;
+        }
+        if (op.equals("<=") || op.equals("<")) {
+            return c <= 0;
+        }
+        if (op.equals(">>")) {
+            return c > 0;
+        }
+        if (op.equals(">=") || op.equals(">")) {
+            return c >= 0;
+        }
+        return c == 0;
+    }
+
+    // Split a whole field into its groups of alternatives.
+    public static Relation[][] parse(String field) {
+        if (field == null) {
+            return new Relation[0][];
+        }
+        ArrayList<Relation[]> out = new ArrayList<Relation[]>();
+        for (String group : field.split(",")) {
+            if (group.trim().length() == 0) {
+                continue;
+            }
+            ArrayList<Relation> alts = new ArrayList<Relation>();
+            for (String alt : group.split("\\|")) {
+                Relation r = new Relation(alt);
+                if (r.name.length() > 0) {
+                    alts.add(r);
+                }
+            }
+            if (alts.size() > 0) {
+                out.add(alts.toArray(new Relation[0]));
+            }
+        }
+        return out.toArray(new Relation[0][]);
+    }
+
+    public String toString() {
+        if (op == null) {
+            return name;
+        }
+        return name + " (" + op + " " + version + ")";
+    }
+}
@@ -0,0 +1,60 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+
+// The Release file of a distribution.  We only use its SHA256 list, which
+// gives the hash and size of every index file under the distribution, and
+// the Acquire-By-Hash flag, which says each index can also be fetched by
+// its hash from a by-hash/SHA256/ folder next to it.  Paths are relative
+// to the distribution folder, e.g. "cores/binary-linux-amd64/Packages.xz".
+
+public class Release {
+    HashMap<String, String[]> sha256 = new HashMap<String, String[]>();
+    boolean byHash = false;
+
+    public static Release read(InputStream in) throws IOException {
+        Release r = new Release();
+        BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        boolean inSums = false;
+        while ((line = br.readLine()) != null) {
+            if (line.startsWith(" ")) {
+                if (inSums) {
+                    String[] parts = line.trim().split("\\s+");
+                    if (parts.length == 3) {
+                        r.sha256.put(parts[2], new String[] { parts[0].toLowerCase(), parts[1] });
+                    }
+                }
+                continue;
+            }
+            inSums = line.startsWith("SHA256:");
+            if (line.startsWith("Acquire-By-Hash:")) {
+                r.byHash = line.substring(16).trim().equalsIgnoreCase("yes");
+            }
+        }
+        return r;
+    }
+
+    public boolean isByHash() {
+        return byHash;
+    }
+
+    // The SHA256 hash of a file, or null if it isn't listed.
+    public String getHash(String name) {
+        String[] e = sha256.get(name);
+        return e == null ? null : e[0];
+    }
+
+    public long getSize(String name) {
+        String[] e = sha256.get(name);
+        if (e == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(e[1]);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+}
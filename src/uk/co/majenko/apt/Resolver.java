@@ -0,0 +1,129 @@
+package uk.co.majenko.apt;
+
+import java.util.*;
+
+// Works out everything a package needs, honouring version constraints and
+// alternatives, and puts it in an order that can be installed from the
+// top: every package comes after all of the packages it depends on.
+//
+// The closure of each package version is remembered once it has been
+// worked out completely, so resolving many packages that share
+// dependencies only walks each part of the graph once.  The memory is
+// only valid for one catalog and one set of installed packages, so
+// reset() must be called whenever either changes.  Closures that used an
+// installed package depend on what is installed at the time, so they are
+// never remembered.
+//
+// A dependency that an installed package already satisfies is left as it
+// is: the plan holds the installed record itself.  Anything else in the
+// plan comes from the catalog and has to be fetched and unpacked.
+
+public class Resolver {
+    APT apt;
+    HashMap<String, Package[]> closures = new HashMap<String, Package[]>();
+
+    public Resolver(APT a) {
+        apt = a;
+    }
+
+    public synchronized void reset() {
+        closures.clear();
+    }
+
+    public synchronized Package[] resolve(Package top) {
+        Package[] all = closure(top, new HashSet<String>(), new boolean[1]);
+        ArrayList<Package> out = new ArrayList<Package>(all.length);
+        for (Package p : all) {
+            if (!p.getName().equals(top.getName())) {
+                out.add(p);
+            }
+        }
+        return out.toArray(new Package[0]);
+    }
+
+    // An installed package that satisfies any alternative of the group is
+    // used as it is, and installed[0] is set.  Only failing that is the
+    // first alternative the catalog can satisfy picked.
+    Package choose(Relation[] group, boolean[] installed) {
+        for (Relation r : group) {
+            Package p = apt.getInstalledPackage(r.getName());
+            if (r.satisfiedBy(p)) {
+                installed[0] = true;
+                return p;
+            }
+        }
+        for (Relation r : group) {
+            Package p = apt.getPackage(r.getName());
+            if (r.satisfiedBy(p)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    // The ordered closure of p, not including p itself.  If a dependency
+    // loop had to be cut somewhere below p, or an installed package stood
+    // in for one from the catalog, then cut[0] is set and the result isn't
+    // remembered: it depends on where the walk began or what is installed.
+    Package[] closure(Package p, HashSet<String> stack, boolean[] cut) {
+        String name = p.getName();
+        String key = name + " " + p.getVersion();
+        Package[] memo = closures.get(key);
+        if (memo != null) {
+            return memo;
+        }
+
+        stack.add(name);
+        LinkedHashMap<String, Package> out = new LinkedHashMap<String, Package>();
+        boolean complete = true;
+
+        for (Relation[] group : p.getRelations(true)) {
+            boolean[] installed = new boolean[1];
+            Package dep = choose(group, installed);
+            if (installed[0]) {
+                complete = false;
+            }
+            if (dep == null) {
+                StringBuilder desc = new StringBuilder();
+                for (Relation r : group) {
+                    if (desc.length() > 0) {
+                        desc.append(" | ");
+                    }
+                    desc.append(r.toString());
+                }
+                System.err.println("Broken dependency: " + desc);
+                continue;
+            }
+
+            String depName = dep.getName();
+            if (out.containsKey(depName)) {
+                continue;
+            }
+            if (stack.contains(depName)) {
+                complete = false;
+                continue;
+            }
+
+            boolean[] subCut = new boolean[1];
+            for (Package sub : closure(dep, stack, subCut)) {
+                if (!out.containsKey(sub.getName()) && !sub.getName().equals(name)) {
+                    out.put(sub.getName(), sub);
+                }
+            }
+            if (subCut[0]) {
+                complete = false;
+            }
+            out.put(depName, dep);
+        }
+
+        stack.remove(name);
+
+        Package[] result = out.values().toArray(new Package[0]);
+        if (complete) {
+            closures.put(key, result);
+        } else {
+            cut[0] = true;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,51 @@
+package uk.co.majenko.apt;
+
+// How many times to try a download and how long to wait in between.  The
+// wait starts at initialDelay and is multiplied by backoff after every
+// failure, up to maxDelay.
+
+public class RetryPolicy {
+    int attempts;
+    long initialDelay;
+    double backoff;
+    long maxDelay;
+
+    public RetryPolicy(int attempts, long initialDelay, double backoff, long maxDelay) {
+        this.attempts = attempts < 1 ? 1 : attempts;
+        this.initialDelay = initialDelay;
+        this.backoff = backoff;
+        this.maxDelay = maxDelay;
+    }
+
+    public RetryPolicy() {
+        this(5, 1000, 2.0, 30000);
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    // Should another attempt be made after attempt number n (counting from
+    // zero) has failed?
+    public boolean shouldRetry(int n) {
+        return (n + 1) < attempts;
+    }
+
+    public long getDelay(int n) {
+        double d = initialDelay;
+        for (int i = 0; i < n; i++) {
+            d *= backoff;
+            if (d >= maxDelay) {
+                return maxDelay;
+            }
+        }
+        return (long)d;
+    }
+
+    public void pause(int n) throws InterruptedException {
+        long d = getDelay(n);
+        if (d > 0) {
+            Thread.sleep(d);
+        }
+    }
+}
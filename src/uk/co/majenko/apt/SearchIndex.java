@@ -0,0 +1,195 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.util.*;
+
+// An inverted index of the words in each package's name, description and
+// section.  Every word maps to a sorted list of numbers, each of which is
+// the position of a package name in a sorted name table.  A search only
+// has to look at the lists for the words it was given.
+//
+// On disk the layout is:
+//
+//   int magic, int format
+//   int names, then each name
+//   int words, then each word followed by int count and count numbers
+
+public class SearchIndex {
+    static final int MAGIC = 0x41505449; // "APTI"
+    static final int FORMAT = 1;
+
+    String[] names;
+    TreeMap<String, int[]> words;
+
+    SearchIndex(String[] n, TreeMap<String, int[]> w) {
+        names = n;
+        words = w;
+    }
+
+    public static SearchIndex build(Collection<Package> packages) {
+        Package[] sorted = packages.toArray(new Package[0]);
+        Arrays.sort(sorted);
+
+        String[] names = new String[sorted.length];
+        TreeMap<String, ArrayList<Integer>> postings = new TreeMap<String, ArrayList<Integer>>();
+
+        for (int i = 0; i < sorted.length; i++) {
+            Package p = sorted[i];
+            names[i] = p.getName();
+
+            HashSet<String> seen = new HashSet<String>();
+            tokenize(p.getName(), seen);
+            tokenize(p.getDescription(), seen);
+            tokenize(p.getSection(), seen);
+
+            for (String w : seen) {
+                ArrayList<Integer> list = postings.get(w);
+                if (list == null) {
+                    list = new ArrayList<Integer>();
+                    postings.put(w, list);
+                }
+                list.add(i);
+            }
+        }
+
+        TreeMap<String, int[]> words = new TreeMap<String, int[]>();
+        for (Map.Entry<String, ArrayList<Integer>> e : postings.entrySet()) {
+            ArrayList<Integer> list = e.getValue();
+            int[] ids = new int[list.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = list.get(i);
+            }
+            words.put(e.getKey(), ids);
+        }
+        return new SearchIndex(names, words);
+    }
+
+    // Split text into lower case words of letters and digits.
+    static void tokenize(String text, Collection<String> out) {
+        if (text == null) {
+            return;
+        }
+        int len = text.length();
+        int start = -1;
+        for (int i = 0; i <= len; i++) {
+            boolean word = (i < len) && Character.isLetterOrDigit(text.charAt(i));
+            if (word && (start < 0)) {
+                start = i;
+            } else if (!word && (start >= 0)) {
+                out.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+    }
+
+    public static SearchIndex load(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 65536));
+        try {
+            if ((in.readInt() != MAGIC) || (in.readInt() != FORMAT)) {
+                throw new IOException("Not a search index");
+            }
+            String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+            }
+            TreeMap<String, int[]> words = new TreeMap<String, int[]>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String w = in.readUTF();
+                int[] ids = new int[in.readInt()];
+                for (int j = 0; j < ids.length; j++) {
+                    ids[j] = in.readInt();
+                }
+                words.put(w, ids);
+            }
+            return new SearchIndex(names, words);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void write(File f) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(names.length);
+            for (String n : names) {
+                out.writeUTF(n);
+            }
+            out.writeInt(words.size());
+            for (Map.Entry<String, int[]> e : words.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                for (int id : e.getValue()) {
+                    out.writeInt(id);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Names of the packages matching every word of the query.  Each query
+    // word matches any indexed word that starts with it.
+    public String[] search(String query) {
+        ArrayList<String> terms = new ArrayList<String>();
+        tokenize(query, terms);
+        if (terms.size() == 0) {
+            return new String[0];
+        }
+
+        int[] result = null;
+        for (String term : terms) {
+            int[] matches = lookup(term);
+            result = result == null ? matches : intersect(result, matches);
+            if (result.length == 0) {
+                break;
+            }
+        }
+
+        String[] out = new String[result.length];
+        for (int i = 0; i < result.length; i++) {
+            out[i] = names[result[i]];
+        }
+        return out;
+    }
+
+    int[] lookup(String prefix) {
+        SortedMap<String, int[]> range = words.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (range.size() == 1) {
+            return range.values().iterator().next();
+        }
+        TreeSet<Integer> ids = new TreeSet<Integer>();
+        for (int[] list : range.values()) {
+            for (int id : list) {
+                ids.add(id);
+            }
+        }
+        int[] out = new int[ids.size()];
+        int i = 0;
+        for (int id : ids) {
+            out[i++] = id;
+        }
+        return out;
+    }
+
+    static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while ((i < a.length) && (j < b.length)) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
@@ -4,78 +4,605 @@ import java.util.*;
 import java.util.zip.*;
 import java.net.*;
 import java.io.*;
+import java.security.*;
+
+import org.apache.commons.io.input.*;
+
+// A repository, which may be served by several equivalent mirrors.  Each
+// request goes to the mirror that has been answering fastest; if it fails
+// the next is tried straight away, and a mirror that keeps failing is left
+// alone for a while.  Packages from a Source all name the first mirror as
+// their Repository, whichever mirror they are actually fetched from.
 
 public class Source {
-    HashMap<String, String> sectionUrls = new HashMap<String, String>();
-    String urlRoot;
+    LinkedHashMap<String, String> sectionPaths = new LinkedHashMap<String, String>();
+    ArrayList<Mirror> mirrors = new ArrayList<Mirror>();
+    File stateFolder = null;
+    boolean spread = false;
+    String dist;
+    volatile Release release = null;
+
+    static final String[] INDEX_ENCODINGS = { ".xz", ".bz2", ".gz", "" };
 
     public Source(String root, String dist, String arch, String[] sections) {
-        urlRoot = root;
+        this(new String[] { root }, dist, arch, sections);
+    }
+
+    public Source(String[] roots, String dist, String arch, String[] sections) {
+        this.dist = dist;
+        for (String root : roots) {
+            mirrors.add(new Mirror(root));
+        }
         for (String sec : sections) {
-            String url = root;
-            if (!url.endsWith("/")) {
-                url += "/";
-            }
-            url += "dists/" + dist + "/" + sec + "/binary-" + arch + "/";
-            sectionUrls.put(sec, url);
+            sectionPaths.put(sec, "dists/" + dist + "/" + sec + "/binary-" + arch + "/");
         }
     }
 
-    public Package[] getPackages() {
-        StringBuilder inData = new StringBuilder();
-        HashMap<String, Package> packages = new HashMap<String, Package>();
-        for (String url : sectionUrls.values()) {
+    public String getRoot() {
+        return mirrors.get(0).getRoot();
+    }
+
+    public Mirror[] getMirrors() {
+        return mirrors.toArray(new Mirror[0]);
+    }
+
+    // Share the downloads of a batch out between the mirrors, weighted by
+    // how fast each one is, rather than sending them all to the fastest.
+    public void setSpread(boolean s) {
+        spread = s;
+    }
+
+    // Read a list of sources, one per line:
+    //
+    //   <url or directory>[,<mirror>...] <dist> <arch> <section> [<section> ...]
+    //
+    // Blank lines and lines starting with # are ignored.
+    public static ArrayList<Source> loadList(File f) {
+        ArrayList<Source> list = new ArrayList<Source>();
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(f));
             try {
-                byte[] buffer = new byte[1024];
-
-                URI packageFile = new URI(url + "Packages.gz");
-                HttpURLConnection conn = (HttpURLConnection)(packageFile.toURL().openConnection());
-
-                int contentLength = conn.getContentLength();
-                InputStream rawIn = (InputStream)conn.getInputStream();
-                GZIPInputStream in = new GZIPInputStream(rawIn);
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                int n;
-                while ((n = in.read(buffer)) > 0) {
-                    out.write(buffer, 0, n);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.equals("") || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] parts = line.split("\\s+");
+                    if (parts.length < 4) {
+                        System.err.println(f + ": bad source line: " + line);
+                        continue;
+                    }
+                    list.add(new Source(parts[0].split(","), parts[1], parts[2], Arrays.copyOfRange(parts, 3, parts.length)));
                 }
+            } finally {
                 in.close();
-                inData.append(out.toString("UTF-8"));
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return list;
+    }
+
+    // Where the last copy of each section index and the validators the
+    // server sent with it are kept between updates.
+    public void setStateFolder(File f) {
+        stateFolder = f;
+    }
+
+    String stateKey(String url) {
+        return url.replaceAll("[^A-Za-z0-9]+", "_");
+    }
+
+    public String[] getSectionPaths() {
+        return sectionPaths.values().toArray(new String[0]);
+    }
+
+    // The mirrors in the order they should be tried: working ones before
+    // ones that have been failing, and cheapest first.
+    Mirror[] ranked() {
+        Mirror[] list = getMirrors();
+        final HashMap<Mirror, Double> cost = new HashMap<Mirror, Double>();
+        for (Mirror m : list) {
+            double c = m.getCost();
+            if (spread) {
+                c *= m.getActive() + 1;
+            }
+            if (m.isDown()) {
+                c += Double.MAX_VALUE / 2;
+            }
+            cost.put(m, c);
         }
+        Arrays.sort(list, new Comparator<Mirror>() {
+            public int compare(Mirror a, Mirror b) {
+                return Double.compare(cost.get(a), cost.get(b));
+            }
+        });
+        return list;
+    }
+
+    // The mirror the next request will go to.
+    public Mirror nextMirror() {
+        return ranked()[0];
+    }
+
+    public boolean hasWorkingMirror() {
+        for (Mirror m : mirrors) {
+            if (!m.isDown()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        String[] lines = inData.toString().split("\n");
-        StringBuilder onePackage = new StringBuilder();
-        for (String line : lines) {
-            if (line.equals("")) {
-                if (onePackage.toString().length() > 10) {
-                    Package thisPackage = new Package(urlRoot, onePackage.toString());
-                    if (packages.get(thisPackage.getName()) != null) {
-                        Package testPackage = packages.get(thisPackage.getName());
-                        if (thisPackage.getVersion().compareTo(testPackage.getVersion()) > 0) {
-                            packages.put(thisPackage.getName(), thisPackage);
-                        }
-                    } else {
-                        packages.put(thisPackage.getName(), thisPackage);
+    // Request a file from the best mirror, moving on to the next if it
+    // can't be reached or doesn't have the file.  If no mirror can supply
+    // it the last answer we got is returned.
+    public TransportResponse open(String path, Map<String, String> headers) throws IOException {
+        IOException error = null;
+        TransportResponse fallback = null;
+        for (Mirror m : ranked()) {
+            TransportResponse r;
+            try {
+                r = m.open(path, headers);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                m.recordFailure();
+                error = e;
+                continue;
+            }
+            int status = r.getStatus();
+            if ((status < 500) && (status != 404) && (status != 408) && (status != 429)) {
+                if (fallback != null) {
+                    fallback.close();
+                }
+                return r;
+            }
+            // A 404 may only mean the mirror is behind.
+            if (status != 404) {
+                m.recordFailure();
+            }
+            if (fallback != null) {
+                fallback.close();
+            }
+            fallback = r;
+        }
+        if (fallback != null) {
+            return fallback;
+        }
+        if (error != null) {
+            throw error;
+        }
+        throw new IOException("No mirrors for " + getRoot());
+    }
+
+    // Bring our copy of a section index up to date using the diffs in
+    // Packages.diff/.  Returns false if the server has no diffs or none that
+    // start from our copy, in which case the whole index must be fetched.
+    // The state is updated to match if the copy was brought up to date.
+    // changed[0] is set if the copy had to be patched.
+    boolean updateByDiffs(String path, File localCopy, Properties state, boolean[] changed, Metric m) throws IOException {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        if (state.getProperty("Diff-ETag") != null) {
+            headers.put("If-None-Match", state.getProperty("Diff-ETag"));
+        }
+        if (state.getProperty("Diff-Last-Modified") != null) {
+            headers.put("If-Modified-Since", state.getProperty("Diff-Last-Modified"));
+        }
+
+        PackagesDiff diff;
+        TransportResponse response = open(path + "Packages.diff/Index", headers);
+        try {
+            // We only keep the index's validators once our copy matches
+            // it, so an unchanged index means an unchanged section.
+            if (response.getStatus() == 304) {
+                m.set("method", "unchanged");
+                return true;
+            }
+            if (response.getStatus() != 200) {
+                return false;
+            }
+            CountingInputStream counter = new CountingInputStream(response.getInputStream());
+            diff = PackagesDiff.read(counter);
+            m.add("bytes", counter.getByteCount());
+        } finally {
+            response.close();
+        }
+
+        String key = diff.getAlgorithm() + "-Local";
+        String have = state.getProperty(key);
+        if (have == null) {
+            have = diff.hash(localCopy);
+        }
+
+        ArrayList<String> patches = diff.patchesFrom(have);
+        if (patches == null) {
+            return false;
+        }
+
+        if (patches.size() > 0) {
+            ArrayList<String> lines = PackagesDiff.readLines(localCopy);
+            for (String name : patches) {
+                TransportResponse pr = open(path + "Packages.diff/" + name + ".gz", null);
+                try {
+                    if (pr.getStatus() != 200) {
+                        throw new IOException("Unable to fetch diff " + name + ": status " + pr.getStatus());
                     }
+                    MessageDigest md = diff.newDigest();
+                    CountingInputStream counter = new CountingInputStream(pr.getInputStream());
+                    InputStream in = new DigestInputStream(new GZIPInputStream(counter, 65536), md);
+                    lines = PackagesDiff.apply(lines, in);
+                    m.add("bytes", counter.getByteCount());
+                    String expected = diff.getPatchHash(name);
+                    if ((expected != null) && !expected.equals(Checksum.hex(md.digest()))) {
+                        throw new IOException("Diff " + name + " is corrupt");
+                    }
+                } finally {
+                    pr.close();
                 }
-                onePackage = new StringBuilder();
-                continue;
             }
-            onePackage.append(line + "\n");
+
+            File tmp = new File(localCopy.getParentFile(), localCopy.getName() + ".tmp");
+            PackagesDiff.writeLines(lines, tmp);
+            if (!diff.getCurrent().equals(diff.hash(tmp))) {
+                tmp.delete();
+                throw new IOException("Patched index does not match " + path + "Packages.diff/Index");
+            }
+            localCopy.delete();
+            tmp.renameTo(localCopy);
+            changed[0] = true;
+        }
+
+        m.set("method", patches.size() > 0 ? "diff" : "unchanged");
+        state.setProperty(key, diff.getCurrent());
+        if (response.getHeader("ETag") != null) {
+            state.setProperty("Diff-ETag", response.getHeader("ETag"));
+        }
+        if (response.getHeader("Last-Modified") != null) {
+            state.setProperty("Diff-Last-Modified", response.getHeader("Last-Modified"));
+        }
+        return true;
+    }
+
+    void saveState(File stateFile, Properties state, String comment) throws IOException {
+        FileOutputStream sout = new FileOutputStream(stateFile);
+        try {
+            state.store(sout, comment);
+        } finally {
+            sout.close();
         }
+    }
 
-        if (onePackage.toString().length() > 10) {
-            Package thisPackage = new Package(urlRoot, onePackage.toString());
-            if (packages.get(thisPackage.getName()) != null) {
+    Package[] readPackages(String path, InputStream in) throws IOException {
+        Metric m = Metrics.start("index.parse", getRoot() + "/" + path);
+        HashMap<String, Package> packages = new HashMap<String, Package>();
+        PackageReader reader = new PackageReader(in, getRoot());
+        try {
+            Package thisPackage;
+            while ((thisPackage = reader.next()) != null) {
                 Package testPackage = packages.get(thisPackage.getName());
-                if (thisPackage.getVersion().compareTo(testPackage.getVersion()) > 0) {
+                if ((testPackage == null) || (thisPackage.compareVersion(testPackage) > 0)) {
                     packages.put(thisPackage.getName(), thisPackage);
                 }
-            } else {
-                packages.put(thisPackage.getName(), thisPackage);
+            }
+        } finally {
+            reader.close();
+            m.set("packages", packages.size());
+            Metrics.finish(m);
+        }
+        return packages.values().toArray(new Package[0]);
+    }
+
+    // Fetch and parse the index of a single section.  If we have a previous
+    // copy we first try to patch it up to date with the section's diffs.
+    // Failing that the request is made conditional and the local copy is
+    // parsed when the server says nothing has changed.  Otherwise the index
+    // is parsed as it is decompressed, while a copy is written alongside
+    // for next time.  Where a package appears more than once only the
+    // newest version is kept.  If the index can't be fetched at all the
+    // copy from last time is used, so one bad section doesn't empty the
+    // catalog of everything in it.
+    public Package[] getSectionPackages(String path) throws Exception {
+        return getSectionPackages(path, false);
+    }
+
+    // As above, but if onlyChanged is set and the section is just as it
+    // was last time (or can't be fetched, so last time's copy stands)
+    // nothing is parsed and null is returned.
+    public Package[] getSectionPackages(String path, boolean onlyChanged) throws Exception {
+        Metric m = Metrics.start("index.fetch", getRoot() + "/" + path);
+        try {
+            return fetchSection(path, onlyChanged, m);
+        } catch (Exception e) {
+            m.set("error", e.toString());
+            File copy = (e instanceof InterruptedIOException) ? null : previousCopy(path);
+            if ((copy == null) || !copy.exists()) {
+                throw e;
+            }
+            Package[] previous = onlyChanged ? null : readPrevious(path);
+            if (!onlyChanged && (previous == null)) {
+                throw e;
+            }
+            System.err.println("Unable to update " + getRoot() + "/" + path + " (" + e + "), keeping the previous index");
+            m.set("method", "previous");
+            return previous;
+        } finally {
+            Metrics.finish(m);
+        }
+    }
+
+    // The packages in the copy of a section kept from the last update, or
+    // null if there isn't a usable one.
+    Package[] readPrevious(String path) {
+        File localCopy = previousCopy(path);
+        if ((localCopy == null) || !localCopy.exists()) {
+            return null;
+        }
+        try {
+            return readPackages(path, new FileInputStream(localCopy));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    File previousCopy(String path) {
+        if (stateFolder == null) {
+            return null;
+        }
+        return new File(stateFolder, stateKey(getRoot() + "/" + path) + ".packages");
+    }
+
+    Package[] fetchSection(String path, boolean onlyChanged, Metric m) throws Exception {
+        File localCopy = null;
+        File stateFile = null;
+        Properties state = new Properties();
+
+        if (stateFolder != null) {
+            if (!stateFolder.exists()) {
+                stateFolder.mkdirs();
+            }
+            String key = stateKey(getRoot() + "/" + path);
+            localCopy = new File(stateFolder, key + ".packages");
+            stateFile = new File(stateFolder, key + ".state");
+            if (localCopy.exists() && stateFile.exists()) {
+                FileInputStream sin = new FileInputStream(stateFile);
+                state.load(sin);
+                sin.close();
+            }
+        }
+
+        // A Release file lists the diff index if there is one, which
+        // saves asking for it when there isn't.
+        Release rel = release;
+        String relPath = path.substring(("dists/" + dist + "/").length());
+        boolean tryDiffs = (rel == null) || (rel.getHash(relPath + "Packages.diff/Index") != null);
+
+        if (tryDiffs && (localCopy != null) && localCopy.exists() && stateFile.exists()) {
+            try {
+                boolean[] changed = { false };
+                if (updateByDiffs(path, localCopy, state, changed, m)) {
+                    saveState(stateFile, state, getRoot() + "/" + path + "Packages.diff/Index");
+                    if (onlyChanged && !changed[0]) {
+                        return null;
+                    }
+                    return readPackages(path, new FileInputStream(localCopy));
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                System.err.println("Unable to update " + getRoot() + "/" + path + " from diffs (" + e.getMessage() + "), fetching it whole");
+            }
+        }
+
+        String[] encodings = encodings(state.getProperty("Encoding"));
+        String encoding = null;
+        String expected = null;
+        TransportResponse response = null;
+
+        // If the Release file lists the section's index we know which
+        // encodings exist and what the index should hash to, and if that
+        // hasn't changed there is nothing to fetch.
+        if (rel != null) {
+            for (String enc : encodings) {
+                if (rel.getHash(relPath + "Packages" + enc) != null) {
+                    encoding = enc;
+                    expected = rel.getHash(relPath + "Packages" + enc);
+                    break;
+                }
+            }
+        }
+
+        if (expected != null) {
+            if ((localCopy != null) && localCopy.exists()
+                && encoding.equals(state.getProperty("Encoding"))
+                && expected.equals(state.getProperty("SHA256"))) {
+                m.set("method", "unchanged");
+                if (onlyChanged) {
+                    return null;
+                }
+                return readPackages(path, new FileInputStream(localCopy));
+            }
+            if (rel.isByHash()) {
+                response = open(path + "by-hash/SHA256/" + expected, null);
+                if (response.getStatus() == 404) {
+                    response.close();
+                    response = null;
+                }
+            }
+            if (response == null) {
+                response = open(path + "Packages" + encoding, null);
+            }
+        } else {
+            // Otherwise try each encoding in turn until one is there.  Only
+            // the one we fetched last time can be asked for conditionally.
+            for (String enc : encodings) {
+                HashMap<String, String> headers = new HashMap<String, String>();
+                if (enc.equals(state.getProperty("Encoding"))) {
+                    if (state.getProperty("ETag") != null) {
+                        headers.put("If-None-Match", state.getProperty("ETag"));
+                    }
+                    if (state.getProperty("Last-Modified") != null) {
+                        headers.put("If-Modified-Since", state.getProperty("Last-Modified"));
+                    }
+                }
+                response = open(path + "Packages" + enc, headers);
+                if (response.getStatus() != 404) {
+                    encoding = enc;
+                    break;
+                }
+                response.close();
+                response = null;
+            }
+            if (response == null) {
+                throw new IOException("No index found at " + getRoot() + "/" + path);
+            }
+        }
+
+        String packageFile = path + "Packages" + encoding;
+        InputStream in;
+        InputStream raw = null;
+        MessageDigest md = null;
+        CountingInputStream counter = null;
+        File tmp = null;
+        m.set("encoding", encoding);
+        if (response.getStatus() == 304) {
+            response.close();
+            m.set("method", "not-modified");
+            if (onlyChanged) {
+                return null;
+            }
+            in = new FileInputStream(localCopy);
+        } else if (response.getStatus() != 200) {
+            response.close();
+            throw new IOException("Unable to fetch " + getRoot() + "/" + packageFile + ": status " + response.getStatus());
+        } else {
+            m.set("method", "full");
+            counter = new CountingInputStream(response.getInputStream());
+            raw = new BufferedInputStream(counter, 65536);
+            if (expected != null) {
+                md = MessageDigest.getInstance("SHA-256");
+                raw = new DigestInputStream(raw, md);
+            }
+            // The decoder mustn't close the raw stream: it has to be read
+            // to the end for the hash to be complete.
+            in = PayloadDecoders.get(encoding).decode(new CloseShieldInputStream(raw));
+            if (localCopy != null) {
+                tmp = new File(stateFolder, localCopy.getName() + ".tmp");
+                in = new TeeInputStream(in, new BufferedOutputStream(new FileOutputStream(tmp), 65536), true);
+            }
+        }
+
+        Package[] list;
+        try {
+            list = readPackages(path, in);
+            if (raw != null) {
+                byte[] buffer = new byte[8192];
+                while (raw.read(buffer) > 0) {
+                }
+                // A dropped connection can look just like the end of the
+                // data, so make sure we got all the server said it sent.
+                long length = response.getContentLength();
+                if ((length >= 0) && (counter.getByteCount() != length)) {
+                    if (tmp != null) {
+                        tmp.delete();
+                    }
+                    throw new IOException("Incomplete download of " + getRoot() + "/" + packageFile + " (" + counter.getByteCount() + " of " + length + " bytes)");
+                }
+            }
+            if (md != null) {
+                if (!expected.equals(Checksum.hex(md.digest()))) {
+                    if (tmp != null) {
+                        tmp.delete();
+                    }
+                    throw new IOException(getRoot() + "/" + packageFile + " does not match the Release file");
+                }
+            }
+        } finally {
+            // Finishing with the response reads anything left after the
+            // compressed data, so the connection can be used again.
+            response.close();
+            if (counter != null) {
+                m.add("bytes", counter.getByteCount());
+            }
+        }
+
+        if (tmp != null) {
+            localCopy.delete();
+            tmp.renameTo(localCopy);
+
+            state.clear();
+            state.setProperty("Encoding", encoding);
+            if (expected != null) {
+                state.setProperty("SHA256", expected);
+            }
+            if (response.getHeader("ETag") != null) {
+                state.setProperty("ETag", response.getHeader("ETag"));
+            }
+            if (response.getHeader("Last-Modified") != null) {
+                state.setProperty("Last-Modified", response.getHeader("Last-Modified"));
+            }
+            saveState(stateFile, state, getRoot() + "/" + packageFile);
+        }
+
+        return list;
+    }
+
+    // The index encodings to look for, smallest first, with the one that
+    // worked last time (if any) moved to the front.
+    String[] encodings(String last) {
+        ArrayList<String> list = new ArrayList<String>();
+        if ((last != null) && (PayloadDecoders.get(last) != null)) {
+            list.add(last);
+        }
+        for (String enc : INDEX_ENCODINGS) {
+            if (!list.contains(enc) && (PayloadDecoders.get(enc) != null)) {
+                list.add(enc);
+            }
+        }
+        return list.toArray(new String[0]);
+    }
+
+    // Fetch the distribution's Release file.  Without one (or if it can't
+    // be read in full) each section's index is found by trying each
+    // encoding.
+    public void loadRelease() {
+        Release rel = null;
+        try {
+            TransportResponse r = open("dists/" + dist + "/Release", null);
+            try {
+                if (r.getStatus() == 200) {
+                    CountingInputStream counter = new CountingInputStream(r.getInputStream());
+                    rel = Release.read(counter);
+                    long length = r.getContentLength();
+                    if ((length >= 0) && (counter.getByteCount() != length)) {
+                        System.err.println("Incomplete Release from " + getRoot() + " (" + counter.getByteCount() + " of " + length + " bytes)");
+                        rel = null;
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to read Release from " + getRoot() + ": " + e.getMessage());
+        }
+        release = rel;
+    }
+
+    public Package[] getPackages() {
+        HashMap<String, Package> packages = new HashMap<String, Package>();
+        loadRelease();
+        for (String path : sectionPaths.values()) {
+            try {
+                for (Package p : getSectionPackages(path)) {
+                    Package testPackage = packages.get(p.getName());
+                    if ((testPackage == null) || (p.compareVersion(testPackage) > 0)) {
+                        packages.put(p.getName(), p);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
             }
         }
 
@@ -0,0 +1,148 @@
+package uk.co.majenko.apt;
+
+import java.util.concurrent.atomic.*;
+
+// Progress of a whole transaction: every package that is to be downloaded
+// and then unpacked.  Each package counts its size twice, once for the
+// download and once for reading it back to unpack it.  Bytes come in from
+// any number of download threads, and the listener is told at most once
+// per interval (and once more at the end).
+//
+// Bytes that didn't have to be transferred (already cached, or already in
+// a partial download) count as done but not towards the transfer rate, so
+// the ETA isn't thrown out by them.
+
+public class TransactionProgress {
+    ProgressListener listener;
+    long interval;
+
+    long started = System.currentTimeMillis();
+    AtomicLong lastReport = new AtomicLong(0);
+    AtomicLong total = new AtomicLong(0);
+    AtomicLong done = new AtomicLong(0);
+    AtomicLong skipped = new AtomicLong(0);
+    AtomicInteger packagesTotal = new AtomicInteger(0);
+    AtomicInteger packagesDone = new AtomicInteger(0);
+    volatile Package current = null;
+    volatile String phase = "";
+    volatile boolean finished = false;
+
+    public TransactionProgress(ProgressListener l, long intervalMs) {
+        listener = l;
+        interval = intervalMs;
+    }
+
+    public void addPackage(Package p) {
+        long size = p.getSize();
+        if (size > 0) {
+            total.addAndGet(size * 2);
+        }
+        packagesTotal.incrementAndGet();
+    }
+
+    public void setPhase(String p) {
+        phase = p;
+        report();
+    }
+
+    // n more bytes of p have been transferred or unpacked.
+    public void add(Package p, long n) {
+        current = p;
+        done.addAndGet(n);
+        maybeReport();
+    }
+
+    // n bytes of p that needed no work.
+    public void skip(Package p, long n) {
+        current = p;
+        skipped.addAndGet(n);
+        done.addAndGet(n);
+        maybeReport();
+    }
+
+    public void packageDone(Package p) {
+        current = p;
+        packagesDone.incrementAndGet();
+        maybeReport();
+    }
+
+    public void finish() {
+        finished = true;
+        report();
+    }
+
+    void maybeReport() {
+        long now = System.currentTimeMillis();
+        long last = lastReport.get();
+        if (((now - last) >= interval) && lastReport.compareAndSet(last, now)) {
+            report();
+        }
+    }
+
+    synchronized void report() {
+        lastReport.set(System.currentTimeMillis());
+        if (listener != null) {
+            listener.progress(this);
+        }
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    // The package that most recently made progress.
+    public Package getCurrent() {
+        return current;
+    }
+
+    public long getBytesDone() {
+        return Math.min(done.get(), getBytesTotal());
+    }
+
+    public long getBytesTotal() {
+        return Math.max(total.get(), done.get());
+    }
+
+    public int getPackagesDone() {
+        return packagesDone.get();
+    }
+
+    public int getPackagesTotal() {
+        return packagesTotal.get();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public int getPercentage() {
+        if (finished) {
+            return 100;
+        }
+        long t = getBytesTotal();
+        return t <= 0 ? 0 : (int)((getBytesDone() * 100) / t);
+    }
+
+    public long getElapsed() {
+        return System.currentTimeMillis() - started;
+    }
+
+    // Bytes per second actually moved.
+    public long getRate() {
+        long ms = getElapsed();
+        long moved = done.get() - skipped.get();
+        return ms <= 0 ? 0 : (moved * 1000) / ms;
+    }
+
+    // Estimated ms to go, or -1 if there's nothing to go on yet.
+    public long getEta() {
+        if (finished) {
+            return 0;
+        }
+        long rate = getRate();
+        if (rate <= 0) {
+            return -1;
+        }
+        return ((getBytesTotal() - getBytesDone()) * 1000) / rate;
+    }
+}
@@ -0,0 +1,14 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+// Something that can fetch a file from a repository.  Requests carry
+// HTTP style headers (If-None-Match, If-Modified-Since, Range) and the
+// response reports an HTTP style status, whatever the transport really
+// is, so callers don't need to care where the data is coming from.
+
+public interface Transport {
+    public TransportResponse open(URI uri, Map<String, String> headers) throws IOException;
+}
@@ -0,0 +1,25 @@
+package uk.co.majenko.apt;
+
+import java.io.*;
+import java.nio.channels.*;
+
+// The answer to a Transport request.  It must always be closed, which for
+// a network transport hands the connection back for re-use.
+
+public interface TransportResponse {
+    public int getStatus();
+
+    // -1 if the length isn't known.
+    public long getContentLength();
+
+    public String getHeader(String name);
+
+    public InputStream getInputStream() throws IOException;
+
+    // A channel positioned at the start of the body, for transports that
+    // can copy straight from it, or null if the body is only available as
+    // a stream.
+    public FileChannel getChannel() throws IOException;
+
+    public void close();
+}
@@ -0,0 +1,37 @@
+package uk.co.majenko.apt;
+
+import java.net.*;
+import java.util.*;
+
+// The transport to use for each URI scheme.
+
+public class Transports {
+    static HashMap<String, Transport> transports = new HashMap<String, Transport>();
+
+    static {
+        Transport http = new HttpTransport();
+        register("http", http);
+        register("https", http);
+        register("file", new FileTransport());
+    }
+
+    public static synchronized void register(String scheme, Transport t) {
+        transports.put(scheme.toLowerCase(), t);
+    }
+
+    public static synchronized Transport forURI(URI uri) {
+        String scheme = uri.getScheme();
+        if (scheme == null) {
+            return transports.get("file");
+        }
+        return transports.get(scheme.toLowerCase());
+    }
+
+    public static TransportResponse open(URI uri, Map<String, String> headers) throws java.io.IOException {
+        Transport t = forURI(uri);
+        if (t == null) {
+            throw new java.io.IOException("No transport for " + uri);
+        }
+        return t.open(uri, headers);
+    }
+}
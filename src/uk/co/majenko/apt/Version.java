@@ -7,9 +7,13 @@ import java.util.*;
 // A mixed base number is a number where different characters within
 // it reperesent values in different bases.  For example, the number
 // "34b" has two base-10 numbers (3 and 4) and a base-26 number (b = 2).
+//
+// The separators are ".", "-", "_", "pl" and "rev".  The string is parsed
+// once, in a single pass, into a plain int array so comparing two versions
+// never allocates anything.
 
 public class Version implements Comparable, Cloneable {
-    public ArrayList<Integer> chunks;
+    public int[] chunks;
     public String versionString;
 
     public Version(String data) {
@@ -17,63 +21,93 @@ public class Version implements Comparable, Cloneable {
             data = "0.0.0a";
         }
 
-        try {
-            versionString = data;
-            chunks = new ArrayList<Integer>();
-
-            if(data != null) {
-                // First, let's standardize any separators
-                data = data.replaceAll("-", ".");
-                data = data.replaceAll("_", ".");
-                data = data.replaceAll("pl", ".");
-                data = data.replaceAll("rev", ".");
-
-                // Now let's split it into bits
-                String[] parts = data.split("\\.");
-
-                // And iterate through it all cleaning the data and converting it to numbers
-                for(String part : parts) {
-                    int val = 0;
-                    char[] letters = part.toCharArray();
-
-                    for(char letter : letters) {
-                        if(letter >= '0' && letter <= '9') {
-                            val = val * 10;
-                            val += (letter - '0');
-                        } else if(letter >= 'a' && letter <= 'z') {
-                            val = val * 26;
-                            val += (letter - 'a');
-                        } else if(letter >= 'A' && letter <= 'Z') {
-                            val = val * 26;
-                            val += (letter - 'A');
-                        }
-                    }
-
-                    chunks.add(val);
+        versionString = data;
+        chunks = parse(data);
+    }
+
+    static int[] parse(String data) {
+        int len = data.length();
+        int[] out = new int[4];
+        int count = 0;
+        // How many chunks to keep.  Empty trailing chunks are dropped, the
+        // same as String.split() would do.
+        int keep = 0;
+
+        int val = 0;
+        boolean empty = true;
+        int i = 0;
+        while (i <= len) {
+            int sep = 0;
+            if (i == len) {
+                sep = 1;
+            } else {
+                char letter = data.charAt(i);
+                if ((letter == '.') || (letter == '-') || (letter == '_')) {
+                    sep = 1;
+                } else if (data.startsWith("pl", i)) {
+                    sep = 2;
+                } else if (data.startsWith("rev", i)) {
+                    sep = 3;
+                }
+            }
+
+            if (sep > 0) {
+                if (count == out.length) {
+                    out = Arrays.copyOf(out, count * 2);
+                }
+                out[count++] = val;
+                if (!empty) {
+                    keep = count;
                 }
+                val = 0;
+                empty = true;
+                i += sep;
+                continue;
             }
-        } catch(Exception e) {
-            e.printStackTrace();
+
+            char letter = data.charAt(i);
+            empty = false;
+            if(letter >= '0' && letter <= '9') {
+                val = val * 10;
+                val += (letter - '0');
+            } else if(letter >= 'a' && letter <= 'z') {
+                val = val * 26;
+                val += (letter - 'a');
+            } else if(letter >= 'A' && letter <= 'Z') {
+                val = val * 26;
+                val += (letter - 'A');
+            }
+            i++;
+        }
+
+        if ((keep == 0) && (len == 0)) {
+            // An empty string still splits into one (zero) chunk.
+            keep = 1;
         }
+
+        return keep == out.length ? out : Arrays.copyOf(out, keep);
     }
 
     public int compareTo(Object o) {
-        Version v = (Version)o;
-        int i = 0;
+        return compare(chunks, ((Version)o).chunks);
+    }
 
-        for(i = 0; i < chunks.size(); i++) {
+    // Compare two parsed versions.  Only as many chunks as the first one
+    // has are looked at; missing chunks in the second count as zero.
+    public static int compare(int[] a, int[] b) {
+        for(int i = 0; i < a.length; i++) {
 
             int targetValue = 0;
 
-            if(i < (v.chunks.size())) {
-                targetValue = v.chunks.get(i);
+            if(i < b.length) {
+                targetValue = b[i];
             }
 
-            if(chunks.get(i) < targetValue) {
+            if(a[i] < targetValue) {
                 return -1;
             }
 
-            if(chunks.get(i) > targetValue) {
+            if(a[i] > targetValue) {
                 return 1;
             }
         }
@@ -83,8 +117,8 @@ public class Version implements Comparable, Cloneable {
 
     @Override
     public Version clone() {
-        Version out = new Version(null);
-        out.chunks = new ArrayList<Integer>(chunks);
+        Version out = new Version(versionString);
+        out.chunks = chunks.clone();
         return out;
     }
 